@@ -0,0 +1,75 @@
+package gameServerJMS;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Random;
+
+/**
+ * H2 database in MySQL mode standing in for MySQL during a simulation. It holds the
+ * tables the matchmaking path touches and one row per simulated player.
+ */
+public class InMemoryDatabase {
+    public static final String URL = "jdbc:h2:mem:gameserverdb;MODE=MySQL;DATABASE_TO_LOWER=TRUE;DB_CLOSE_DELAY=-1";
+    private static final int BATCH_SIZE = 1000;
+
+    // Kept open so the database outlives every server connection
+    private final Connection keepAlive;
+
+    public InMemoryDatabase() throws SQLException {
+        keepAlive = DriverManager.getConnection(URL);
+        try (Statement stmt = keepAlive.createStatement()) {
+            stmt.execute("CREATE TABLE players (player_id int PRIMARY KEY, username varchar(50) NOT NULL, "
+                    + "password_hash varchar(255) NOT NULL, current_rating int DEFAULT 1000)");
+            stmt.execute("CREATE TABLE gametypes (type_id int PRIMARY KEY, game_name varchar(100) NOT NULL, total_matches int)");
+            stmt.execute("CREATE TABLE stats (player_id int PRIMARY KEY, wins int DEFAULT 0, losses int DEFAULT 0, draws int DEFAULT 0)");
+            stmt.execute("CREATE TABLE stats_by_type (player_id int, type_id int, wins int DEFAULT 0, "
+                    + "losses int DEFAULT 0, draws int DEFAULT 0, PRIMARY KEY (player_id, type_id))");
+            stmt.execute("CREATE TABLE games (game_id int AUTO_INCREMENT PRIMARY KEY, type_id int NOT NULL, "
+                    + "player_a int NOT NULL, player_b int NOT NULL, start_time datetime DEFAULT CURRENT_TIMESTAMP, "
+                    + "end_time datetime, winner int, loser int, draw varchar(3), stat varchar(45))");
+            stmt.execute("CREATE TABLE game_id_sequence (name varchar(50) PRIMARY KEY, next_val bigint NOT NULL)");
+            stmt.execute("INSERT INTO gametypes (type_id, game_name) VALUES (1, 'ConnectFour'), (2, 'BattleShips'), (3, 'Just Not One')");
+        }
+    }
+
+    /**
+     * Inserts players firstId to firstId + count - 1 with ratings spread normally around 1000
+     */
+    public void seedPlayers(int firstId, long count, int ratingSpread, Random random) throws SQLException {
+        keepAlive.setAutoCommit(false);
+        try (PreparedStatement players = keepAlive.prepareStatement(
+                     "INSERT INTO players (player_id, username, password_hash, current_rating) VALUES (?, ?, '', ?)");
+             PreparedStatement stats = keepAlive.prepareStatement("INSERT INTO stats (player_id) VALUES (?)")) {
+            for (long i = 0; i < count; i++) {
+                int playerId = (int) (firstId + i);
+                players.setInt(1, playerId);
+                players.setString(2, "sim_" + playerId);
+                players.setInt(3, (int) Math.round(1000 + random.nextGaussian() * ratingSpread));
+                players.addBatch();
+                stats.setInt(1, playerId);
+                stats.addBatch();
+                if ((i + 1) % BATCH_SIZE == 0) {
+                    players.executeBatch();
+                    stats.executeBatch();
+                }
+            }
+            players.executeBatch();
+            stats.executeBatch();
+            keepAlive.commit();
+        } finally {
+            keepAlive.setAutoCommit(true);
+        }
+    }
+
+    public int countGames() throws SQLException {
+        try (Statement stmt = keepAlive.createStatement()) {
+            ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM games");
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+}
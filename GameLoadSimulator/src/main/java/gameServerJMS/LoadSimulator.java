@@ -0,0 +1,329 @@
+package gameServerJMS;
+
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.jms.*;
+
+import org.apache.activemq.ActiveMQConnectionFactory;
+import org.json.JSONObject;
+
+/**
+ * Drives matchmaking with simulated players to find the join rate at which it saturates.
+ *
+ * The run goes through stages of rising join rates. Every simulated player joins
+ * game-join once, some give up and send game-cancel after a random patience, and the
+ * time from the planned join to the game-session start message is recorded for the
+ * stage the player joined in. Latency is taken from the planned join time, so a
+ * simulator falling behind shows up in the numbers instead of hiding the backlog.
+ *
+ * Without --broker-url GameServer runs in this process on its embedded broker and an
+ * in-memory H2 database, otherwise the players go to the given broker.
+ */
+public class LoadSimulator {
+    private static final int WAITING = 0;
+    private static final int MATCHED = 1;
+    private static final int CANCELED = 2;
+
+    private final SimulationOptions options;
+    private final Random random;
+    private final PrintStream report;
+    private final Lane[] lanes;
+    private final Stage[] stages;
+    private final ScheduledExecutorService cancels = Executors.newSingleThreadScheduledExecutor();
+    private final javax.jms.Connection connection;
+    // Gap between a planned join and the join actually sent, shows when the simulator is the bottleneck
+    private final WaitTimeHistogram sendLag = new WaitTimeHistogram();
+    private final int typeWeightTotal;
+
+    public static void main(String[] args) throws Exception {
+        SimulationOptions options = SimulationOptions.parse(args);
+        PrintStream report = System.out;
+        Random random = new Random(options.seed);
+
+        String brokerUrl = options.brokerUrl;
+        InMemoryDatabase database = null;
+        if (brokerUrl == null) {
+            database = startLocalServer(options, random, report);
+            brokerUrl = EmbeddedBroker.VM_URL;
+        }
+
+        LoadSimulator simulator = new LoadSimulator(options, brokerUrl, random, report);
+        simulator.run();
+        if (database != null) {
+            report.println("Games stored: " + database.countGames());
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Seeds the in-memory database and starts GameServer on an embedded broker in this process
+     */
+    private static InMemoryDatabase startLocalServer(SimulationOptions options, Random random, PrintStream report) throws Exception {
+        // Read by GameServer's static fields, so they have to be set before it is first used
+        System.setProperty("gameServerJMS.dbUrl", InMemoryDatabase.URL);
+        System.setProperty("gameServerJMS.dbUser", "");
+        System.setProperty("gameServerJMS.dbPassword", "");
+        System.setProperty("gameServerJMS.stateFile",
+                Files.createTempDirectory("loadsim").resolve("matchmaking-state.dat").toString());
+        defaultProperty("gameServerJMS.metricsPort", "0");
+        defaultProperty("gameServerJMS.connectorUrl", "nio://localhost:0");
+        // Simulated players never play, their games are reaped once idle
+        defaultProperty("gameServerJMS.gameIdleTimeoutSeconds", String.valueOf(options.gameIdleSeconds));
+
+        long players = options.totalPlayers() + options.totalPlayers() / 10 + 1000;
+        long start = System.nanoTime();
+        InMemoryDatabase database = new InMemoryDatabase();
+        database.seedPlayers(options.firstPlayerId, players, options.ratingSpread, random);
+        report.println("Seeded " + players + " players in " + (System.nanoTime() - start) / 1_000_000 + " ms");
+
+        if (!options.serverLog) {
+            // The server logs every join, at these rates the console would be what is measured
+            System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+        }
+        GameServer.main(new String[] { "--embedded-broker" });
+        return database;
+    }
+
+    private static void defaultProperty(String name, String value) {
+        if (System.getProperty(name) == null) {
+            System.setProperty(name, value);
+        }
+    }
+
+    private LoadSimulator(SimulationOptions options, String brokerUrl, Random random, PrintStream report) throws JMSException {
+        this.options = options;
+        this.random = random;
+        this.report = report;
+
+        ActiveMQConnectionFactory factory = new ActiveMQConnectionFactory(brokerUrl);
+        factory.setCopyMessageOnSend(false);
+        connection = factory.createConnection();
+        connection.start();
+
+        lanes = new Lane[options.lanes];
+        for (int i = 0; i < lanes.length; i++) {
+            lanes[i] = new Lane(connection.createSession(false, Session.AUTO_ACKNOWLEDGE));
+        }
+        stages = new Stage[options.rates.length];
+        for (int i = 0; i < stages.length; i++) {
+            stages[i] = new Stage(options.rates[i]);
+        }
+        int total = 0;
+        for (int weight : options.typeWeights) {
+            total += weight;
+        }
+        typeWeightTotal = total;
+    }
+
+    private void run() throws Exception {
+        report.println("Running " + stages.length + " stages of " + options.stageSeconds + " s, "
+                + (options.poissonArrivals ? "poisson" : "uniform") + " arrivals, "
+                + (int) (options.cancelFraction * 100) + "% cancel after a mean of " + options.meanPatienceMillis + " ms");
+
+        int nextPlayerId = options.firstPlayerId;
+        long stageStart = System.nanoTime();
+        for (int s = 0; s < stages.length; s++) {
+            Stage stage = stages[s];
+            long stageEnd = stageStart + TimeUnit.SECONDS.toNanos(options.stageSeconds);
+            double meanGapNanos = 1e9 / stage.rate;
+            long plannedJoin = stageStart;
+            while (true) {
+                plannedJoin += (long) (options.poissonArrivals ? -Math.log(1 - random.nextDouble()) * meanGapNanos : meanGapNanos);
+                if (plannedJoin >= stageEnd) break;
+
+                Player player = new Player(nextPlayerId++, pickType(), stage, plannedJoin);
+                long patienceMillis = random.nextDouble() < options.cancelFraction
+                        ? (long) (-Math.log(1 - random.nextDouble()) * options.meanPatienceMillis)
+                        : -1;
+
+                long sleepNanos = plannedJoin - System.nanoTime();
+                if (sleepNanos > 0) {
+                    LockSupport.parkNanos(sleepNanos);
+                }
+                Lane lane = lanes[player.playerId % lanes.length];
+                lane.thread.execute(() -> join(lane, player));
+                if (patienceMillis >= 0) {
+                    cancels.schedule(() -> lane.thread.execute(() -> cancel(lane, player)),
+                            patienceMillis, TimeUnit.MILLISECONDS);
+                }
+            }
+            stageStart = stageEnd;
+            report.println("Stage " + (s + 1) + " done: " + stage.rate + " joins/s, "
+                    + stage.joined.sum() + " joined, " + stage.matched.sum() + " matched so far");
+        }
+
+        // Players of the last stages still get matched or give up
+        Thread.sleep(TimeUnit.SECONDS.toMillis(options.drainSeconds));
+        cancels.shutdownNow();
+        // Stop deliveries first so no listener hands work to a lane that is shutting down
+        connection.stop();
+        for (Lane lane : lanes) {
+            lane.thread.shutdown();
+            lane.thread.awaitTermination(10, TimeUnit.SECONDS);
+        }
+        connection.close();
+        printReport();
+    }
+
+    private int pickType() {
+        int pick = random.nextInt(typeWeightTotal);
+        for (int i = 0; i < options.typeWeights.length; i++) {
+            pick -= options.typeWeights[i];
+            if (pick < 0) return i + 1;
+        }
+        return options.typeWeights.length;
+    }
+
+    private void join(Lane lane, Player player) {
+        try {
+            player.consumer = lane.session.createConsumer(lane.session.createQueue("player-" + player.playerId));
+            player.consumer.setMessageListener(message -> onReply(lane, player, message));
+
+            // JSON only, simulated players never read the binary game frames
+            TextMessage join = lane.session.createTextMessage(
+                    player.playerId + ":" + player.typeId + ":" + GameWireCodec.JSON_ONLY);
+            join.setStringProperty("JMSXGroupID", ClusterCoordinator.groupFor(player.typeId));
+            lane.producer.send(lane.joinQueue, join);
+            sendLag.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - player.plannedJoin));
+            player.stage.joined.increment();
+        } catch (JMSException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void cancel(Lane lane, Player player) {
+        if (!player.state.compareAndSet(WAITING, CANCELED)) return;
+        try {
+            TextMessage cancel = lane.session.createTextMessage(player.playerId + ":" + player.typeId);
+            cancel.setStringProperty("JMSXGroupID", ClusterCoordinator.groupFor(player.typeId));
+            lane.producer.send(lane.cancelQueue, cancel);
+            player.stage.canceled.increment();
+        } catch (JMSException e) {
+            e.printStackTrace();
+        }
+        close(player);
+    }
+
+    /**
+     * Runs on the lane session's dispatch thread, only records and hands the cleanup back
+     */
+    private void onReply(Lane lane, Player player, Message message) {
+        try {
+            if (!(message instanceof TextMessage)) return;
+            String queue = new JSONObject(((TextMessage) message).getText()).getString("queue");
+            if (queue.equals("WAITING")) return;
+
+            if (queue.equals("ALREADY_IN_GAME")) {
+                player.stage.alreadyInGame.increment();
+            } else if (player.state.compareAndSet(WAITING, MATCHED)) {
+                player.stage.matched.increment();
+                player.stage.latency.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - player.plannedJoin));
+            }
+            lane.thread.execute(() -> close(player));
+        } catch (JMSException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void close(Player player) {
+        try {
+            if (player.consumer != null) {
+                player.consumer.close();
+                player.consumer = null;
+            }
+        } catch (JMSException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void printReport() {
+        report.println();
+        report.println(String.format("%8s %9s %9s %9s %9s %10s %8s %8s %8s %8s",
+                "joins/s", "joined", "matched", "canceled", "waiting", "matched/s", "p50 ms", "p90 ms", "p99 ms", "max ms"));
+        Stage saturated = null;
+        for (Stage stage : stages) {
+            long joined = stage.joined.sum();
+            long matched = stage.matched.sum();
+            long canceled = stage.canceled.sum();
+            long waiting = joined - matched - canceled - stage.alreadyInGame.sum();
+            long p99 = stage.latency.valueAtQuantile(0.99);
+            // A few odd players per type are always left over, more than 1% means matching fell behind
+            boolean overloaded = p99 > options.sloMillis || waiting > Math.max(options.typeWeights.length, joined / 100);
+            if (overloaded && saturated == null) {
+                saturated = stage;
+            }
+            report.println(String.format("%8d %9d %9d %9d %9d %10.1f %8d %8d %8d %8d%s",
+                    stage.rate, joined, matched, canceled, waiting, (double) matched / options.stageSeconds,
+                    stage.latency.valueAtQuantile(0.5), stage.latency.valueAtQuantile(0.9), p99,
+                    stage.latency.getMax(), overloaded ? "  saturated" : ""));
+        }
+        report.println();
+        report.println("Simulator send lag p99: " + sendLag.valueAtQuantile(0.99) + " ms, max: " + sendLag.getMax() + " ms");
+        if (saturated != null) {
+            report.println("Saturation point: " + saturated.rate + " joins/s (p99 above " + options.sloMillis
+                    + " ms or more than 1% of players left waiting)");
+        } else {
+            report.println("Saturation point not reached, the highest stage stayed within " + options.sloMillis + " ms p99");
+        }
+    }
+
+    /**
+     * One session with the thread that creates its consumers and sends its joins and
+     * cancels, JMS sessions are single threaded
+     */
+    private static class Lane {
+        final Session session;
+        final MessageProducer producer;
+        final Destination joinQueue;
+        final Destination cancelQueue;
+        final ExecutorService thread = Executors.newSingleThreadExecutor();
+
+        Lane(Session session) throws JMSException {
+            this.session = session;
+            producer = session.createProducer(null);
+            producer.setDeliveryMode(DeliveryMode.NON_PERSISTENT);
+            joinQueue = session.createQueue("game-join");
+            cancelQueue = session.createQueue("game-cancel");
+        }
+    }
+
+    private static class Stage {
+        final int rate;
+        final LongAdder joined = new LongAdder();
+        final LongAdder matched = new LongAdder();
+        final LongAdder canceled = new LongAdder();
+        final LongAdder alreadyInGame = new LongAdder();
+        final WaitTimeHistogram latency = new WaitTimeHistogram();
+
+        Stage(int rate) {
+            this.rate = rate;
+        }
+    }
+
+    private static class Player {
+        final int playerId;
+        final int typeId;
+        final Stage stage;
+        final long plannedJoin;
+        final AtomicInteger state = new AtomicInteger(WAITING);
+        // Only touched from the player's lane thread
+        MessageConsumer consumer;
+
+        Player(int playerId, int typeId, Stage stage, long plannedJoin) {
+            this.playerId = playerId;
+            this.typeId = typeId;
+            this.stage = stage;
+            this.plannedJoin = plannedJoin;
+        }
+    }
+}
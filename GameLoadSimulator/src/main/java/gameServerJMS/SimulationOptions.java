@@ -0,0 +1,87 @@
+package gameServerJMS;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Command line options of the load simulator, given as --name=value
+ */
+public class SimulationOptions {
+    // Join rate of every stage in players per second, stages run one after the other
+    final int[] rates;
+    final long stageSeconds;
+    // Seconds after the last stage in which late matches are still counted
+    final long drainSeconds;
+    // poisson for exponential gaps between joins, uniform for evenly spaced joins
+    final boolean poissonArrivals;
+    // Relative weight of each game type, index 0 is type_id 1
+    final int[] typeWeights;
+    final double cancelFraction;
+    final long meanPatienceMillis;
+    // Standard deviation of player ratings around 1000, 0 keeps the rating window out of the measurement
+    final int ratingSpread;
+    final long seed;
+    // Sessions the simulated players are spread over, each one with its own dispatch thread
+    final int lanes;
+    // A join-to-match p99 above this marks a stage as saturated
+    final long sloMillis;
+    // Null runs GameServer in this process on an embedded broker and an in-memory database
+    final String brokerUrl;
+    final int firstPlayerId;
+    final long gameIdleSeconds;
+    final boolean serverLog;
+
+    private SimulationOptions(Map<String, String> values) {
+        rates = ints(values.getOrDefault("rates", "100,200,400,800,1600"));
+        stageSeconds = Long.parseLong(values.getOrDefault("stage-seconds", "30"));
+        drainSeconds = Long.parseLong(values.getOrDefault("drain-seconds", "10"));
+        poissonArrivals = !"uniform".equals(values.getOrDefault("arrivals", "poisson"));
+        typeWeights = ints(values.getOrDefault("type-weights", "1,1,1"));
+        cancelFraction = Double.parseDouble(values.getOrDefault("cancel-fraction", "0.1"));
+        meanPatienceMillis = Long.parseLong(values.getOrDefault("mean-patience-millis", "5000"));
+        ratingSpread = Integer.parseInt(values.getOrDefault("rating-spread", "0"));
+        seed = Long.parseLong(values.getOrDefault("seed", "42"));
+        lanes = Integer.parseInt(values.getOrDefault("lanes", "16"));
+        sloMillis = Long.parseLong(values.getOrDefault("slo-millis", "1000"));
+        brokerUrl = values.get("broker-url");
+        firstPlayerId = Integer.parseInt(values.getOrDefault("first-player-id", "1"));
+        gameIdleSeconds = Long.parseLong(values.getOrDefault("game-idle-seconds", "10"));
+        serverLog = Boolean.parseBoolean(values.getOrDefault("server-log", "false"));
+    }
+
+    public static SimulationOptions parse(String[] args) {
+        Map<String, String> values = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("Unexpected argument " + arg);
+            }
+            int split = arg.indexOf('=');
+            if (split < 0) {
+                values.put(arg.substring(2), "true");
+            } else {
+                values.put(arg.substring(2, split), arg.substring(split + 1));
+            }
+        }
+        return new SimulationOptions(values);
+    }
+
+    /**
+     * Players joining over all stages, each simulated player joins once
+     */
+    long totalPlayers() {
+        long total = 0;
+        for (int rate : rates) {
+            total += rate * stageSeconds;
+        }
+        return total;
+    }
+
+    private static int[] ints(String list) {
+        String[] parts = list.split(",");
+        int[] values = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            values[i] = Integer.parseInt(parts[i].trim());
+        }
+        return values;
+    }
+}
@@ -61,6 +61,7 @@ public class BattleshipController {
     private boolean placeVertical = false;
     private boolean opponentSetupComplete = false;
     private Stage stage;
+    private int wireVersion = GameWireCodec.JSON_ONLY;
 
 
     public void initialize() {
@@ -523,6 +524,25 @@ public class BattleshipController {
         });
     }
     
+    /**
+     * Shows dialog for a game the server called off, runs on the FX thread
+     */
+    private void showCalledOff() {
+        Alert alert = new Alert(Alert.AlertType.INFORMATION);
+        alert.setTitle("Game Called Off");
+        alert.setHeaderText("Game Called Off");
+        alert.setContentText("The server could not record this game, it does not count");
+        alert.setOnHidden(evt -> {
+            if (stage != null) {
+                stage.close();
+            }
+            if (onGameEnd != null) {
+                onGameEnd.run();
+            }
+        });
+        alert.show();
+    }
+
     /**
      * Shows final game result dialog
      */
@@ -557,14 +577,18 @@ public class BattleshipController {
     private void sendGameOver(boolean won) {
         JSONObject message = new JSONObject();
         message.put("type", "game_over");
-        message.put("winnerId", won ? myPlayerId : (myPlayerId == 1 ? 2 : 1));
+        // The opponent's id is not known here, so a loss names the loser instead
+        message.put(won ? "winnerId" : "loserId", myPlayerId);
         sendMessage(message);
         
-        // Send result to server for processing
+        // Only the loser reports, it sees the last ship sink first and the winner may
+        // already have been told by its game_over. The server resolves the winner.
+        if (won) return;
+        
         JSONObject resultMessage = new JSONObject();
         resultMessage.put("type", "result");
         resultMessage.put("queue", gameQueueName);
-        resultMessage.put("winnerId", won ? myPlayerId : (myPlayerId == 1 ? 2 : 1));
+        resultMessage.put("loserId", myPlayerId);
         
         try {
             Destination resultQueue = session.createQueue("game-result");
@@ -603,8 +627,8 @@ public class BattleshipController {
             message.put("queue", gameQueueName);
             Topic gameTopic = session.createTopic(gameQueueName);
             MessageProducer producer = session.createProducer(gameTopic);
-            TextMessage msg = session.createTextMessage(message.toString());
-            producer.send(msg);
+            producer.setDeliveryMode(DeliveryMode.NON_PERSISTENT);
+            producer.send(GameWireCodec.toMessage(session, message, wireVersion));
             producer.close();
         } catch (JMSException e) {
             e.printStackTrace();
@@ -621,7 +645,7 @@ public class BattleshipController {
         this.myPlayerId = playerId;
         this.isMyTurn = yourTurn;
 
-        ConnectionFactory factory = new ActiveMQConnectionFactory("tcp://localhost:61616");
+        ConnectionFactory factory = new ActiveMQConnectionFactory(GameClient.getBrokerUrl());
         connection = factory.createConnection();
         connection.start();
         session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
@@ -632,9 +656,8 @@ public class BattleshipController {
         // Handle incoming game messages
         consumer.setMessageListener(message -> {
             try {
-                if (message instanceof TextMessage) {
-                    String json = ((TextMessage) message).getText();
-                    JSONObject obj = new JSONObject(json);
+                JSONObject obj = GameWireCodec.fromMessage(message);
+                if (obj != null) {
                     String type = obj.getString("type");
 
                     switch (type) {
@@ -662,7 +685,9 @@ public class BattleshipController {
                         case "game_over":
                             if (!gameOver) {
                                 gameOver = true;
-                                boolean iWon = obj.getInt("winnerId") == myPlayerId;
+                                boolean iWon = obj.has("winnerId")
+                                        ? obj.getInt("winnerId") == myPlayerId
+                                        : obj.getInt("loserId") != myPlayerId;
                                 Platform.runLater(() -> {
                                     statusLabel.setText(iWon ? "Game Over - You Win!" : "Game Over - You Lost!");
                                     showGameResult(iWon);
@@ -670,6 +695,17 @@ public class BattleshipController {
                             }
                             break;
                             
+                        case "aborted":
+                            // The server could not record the game and called it off
+                            if (!gameOver) {
+                                gameOver = true;
+                                Platform.runLater(() -> {
+                                    statusLabel.setText("Game called off");
+                                    showCalledOff();
+                                });
+                            }
+                            break;
+                            
                         case "forfeit":
                             if (obj.getInt("playerId") != myPlayerId && !gameOver) {
                                 gameOver = true;
@@ -691,6 +727,10 @@ public class BattleshipController {
         this.onGameEnd = onGameEnd;
     }
 
+    public void setWireVersion(int wireVersion) {
+        this.wireVersion = wireVersion;
+    }
+
     private static class Ship {
         int row;
         int col;
@@ -0,0 +1,184 @@
+package gameServerJMS;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+
+import org.json.JSONObject;
+
+/**
+ * Lets several GameServer instances share matchmaking.
+ *
+ * Clients tag join and cancel messages with a JMS message group per game type, so the
+ * broker hands every join of a type to one instance, which owns that type's waiting
+ * queue. When the broker assigns a group to a new instance, because the owner left or
+ * released it, the new owner announces a claim on the control topic and the previous
+ * owner re-sends its waiting players to game-join, where they land with the new owner.
+ * An instance that starts up asks the others to release one type each so it gets a
+ * share of the load. Instances answer a hello with a present event and announce when
+ * they leave, so each one knows whether another is running that could hold a game.
+ */
+public class ClusterCoordinator {
+    public static final String CONTROL_TOPIC = "matchmaking-control";
+    // Set by the broker on the first message of a group delivered to a consumer
+    private static final String GROUP_FIRST = "JMSXGroupFirstForConsumer";
+    private static final String GROUP_CLOSE = "groupClose";
+
+    private final String instanceId;
+    private final javax.jms.Connection connection;
+    // Producers only, the control topic listener gets its own session
+    private final Session session;
+    private final MessageProducer controlProducer;
+    private final MessageProducer joinProducer;
+    private final Set<Integer> ownedTypes = ConcurrentHashMap.newKeySet();
+    // Other instances that announced themselves and have not left, they own any games they started
+    private final Set<String> peers = ConcurrentHashMap.newKeySet();
+
+    public ClusterCoordinator(String instanceId, javax.jms.Connection connection) throws JMSException {
+        this.instanceId = instanceId;
+        this.connection = connection;
+        session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        controlProducer = session.createProducer(session.createTopic(CONTROL_TOPIC));
+        joinProducer = session.createProducer(session.createQueue("game-join"));
+    }
+
+    /**
+     * Group id clients put on join and cancel messages of a game type
+     */
+    public static String groupFor(int typeId) {
+        return "type-" + typeId;
+    }
+
+    /**
+     * Starts following the control topic and announces this instance
+     */
+    public void start() throws JMSException {
+        Session listenerSession = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        MessageConsumer consumer = listenerSession.createConsumer(listenerSession.createTopic(CONTROL_TOPIC));
+        consumer.setMessageListener(message -> {
+            try {
+                if (message instanceof TextMessage) {
+                    onControlMessage(new JSONObject(((TextMessage) message).getText()));
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+        publish(new JSONObject().put("event", "hello"));
+        System.out.println("Joined matchmaking cluster as " + instanceId);
+    }
+
+    /**
+     * Marker messages used to release a group carry no join and are skipped
+     */
+    public boolean isGroupClose(Message message) throws JMSException {
+        return message.propertyExists(GROUP_CLOSE);
+    }
+
+    /**
+     * Claims the type when the broker just assigned its group to this instance
+     */
+    public void onJoin(Message message, int typeId) throws JMSException {
+        if (message.propertyExists(GROUP_FIRST) && message.getBooleanProperty(GROUP_FIRST)) {
+            ownedTypes.add(typeId);
+            publish(new JSONObject().put("event", "claim").put("typeId", typeId));
+            System.out.println("Took over matchmaking for type_id=" + typeId);
+        }
+    }
+
+    /**
+     * Sends a waiting player back to game-join so the current owner of the type picks it up
+     */
+    public void resendJoin(String playerId, int typeId, int wireVersion) throws JMSException {
+        synchronized (session) {
+            TextMessage message = session.createTextMessage(playerId + ":" + typeId + ":" + wireVersion);
+            message.setStringProperty("JMSXGroupID", groupFor(typeId));
+            joinProducer.send(message);
+        }
+    }
+
+    /**
+     * Passes a cancel for a player this instance does not hold on to the other instances
+     */
+    public void forwardCancel(String playerId, int typeId) throws JMSException {
+        publish(new JSONObject().put("event", "cancel").put("playerId", playerId).put("typeId", typeId));
+    }
+
+    public void leave() throws JMSException {
+        publish(new JSONObject().put("event", "leave"));
+    }
+
+    public Set<Integer> getOwnedTypes() {
+        return ownedTypes;
+    }
+
+    /**
+     * Whether another instance is known to be running, so a game this instance does not
+     * hold may be played there
+     */
+    public boolean hasPeers() {
+        return !peers.isEmpty();
+    }
+
+    private void onControlMessage(JSONObject event) throws JMSException {
+        if (instanceId.equals(event.getString("instance"))) return;
+
+        String sender = event.getString("instance");
+        switch (event.getString("event")) {
+            case "hello":
+                peers.add(sender);
+                // Let the new instance know this one is running
+                publish(new JSONObject().put("event", "present"));
+                releaseOneType();
+                break;
+            case "present":
+                peers.add(sender);
+                break;
+            case "leave":
+                peers.remove(sender);
+                break;
+            case "claim":
+                peers.add(sender);
+                int typeId = event.getInt("typeId");
+                if (ownedTypes.remove(typeId)) {
+                    System.out.println("Handing type_id=" + typeId + " over to " + event.getString("instance"));
+                }
+                // Hand over even when the type was not known as owned, a restored queue may hold players
+                GameServer.handOver(typeId);
+                break;
+            case "cancel":
+                GameServer.cancelWaiting(event.getString("playerId"), event.getInt("typeId"), false);
+                break;
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Closes one of the owned groups so the broker assigns it again on its next message
+     */
+    private void releaseOneType() throws JMSException {
+        if (ownedTypes.size() <= 1) return;
+        int typeId = ownedTypes.iterator().next();
+        synchronized (session) {
+            TextMessage message = session.createTextMessage("");
+            message.setStringProperty("JMSXGroupID", groupFor(typeId));
+            message.setIntProperty("JMSXGroupSeq", -1);
+            message.setBooleanProperty(GROUP_CLOSE, true);
+            joinProducer.send(message);
+        }
+        System.out.println("Released type_id=" + typeId + " for rebalancing");
+    }
+
+    private void publish(JSONObject event) throws JMSException {
+        synchronized (session) {
+            controlProducer.send(session.createTextMessage(event.put("instance", instanceId).toString()));
+        }
+    }
+}
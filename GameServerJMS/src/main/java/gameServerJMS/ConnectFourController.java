@@ -16,7 +16,6 @@ import javafx.scene.shape.Rectangle;
 import javafx.stage.Stage;
 import javafx.util.Duration;
 import org.apache.activemq.ActiveMQConnectionFactory;
-import org.json.JSONArray;
 import org.json.JSONObject;
 
 import java.util.ArrayList;
@@ -54,6 +53,7 @@ public class ConnectFourController{
     private String opponentUsername;
     private Button[] columnButtons = new Button[COLUMNS];
     private Stage stage;
+    private int wireVersion = GameWireCodec.JSON_ONLY;
 
     public ConnectFourController() {
         this.myUsername = "Player";
@@ -338,6 +338,7 @@ public class ConnectFourController{
             // Send to game topic for opponent notification
             Topic gameTopic = session.createTopic(gameQueueName);
             MessageProducer gameProducer = session.createProducer(gameTopic);
+            gameProducer.setDeliveryMode(DeliveryMode.NON_PERSISTENT);
             JSONObject gameObj = new JSONObject();
             gameObj.put("type", "resign");
             gameObj.put("resignedPlayerId", myPlayerId);
@@ -504,44 +505,48 @@ public class ConnectFourController{
     private void showWinner(String winnerName, boolean isLocalPlayer) {
         if (gameOverDialogShown) return;
         gameOverDialogShown = true;
-        
-        try {
-            if (isLocalPlayer) {
-                // Send win result to server
-                JSONObject resultObj = new JSONObject();
-                resultObj.put("queue", gameQueueName);
-                resultObj.put("type", "result");
-                resultObj.put("winnerId", myPlayerId);
-                resultObj.put("winnerName", myUsername);
-                
-                Destination resultQueue = session.createQueue("game-result");
-                MessageProducer producer = session.createProducer(resultQueue);
-                TextMessage msg = session.createTextMessage(resultObj.toString());
-                producer.send(msg);
-                producer.close();
-            }
 
-            Platform.runLater(() -> {
-                Alert alert = new Alert(Alert.AlertType.INFORMATION);
-                alert.setTitle("Game Complete!");
-                alert.setHeaderText(isLocalPlayer ? "VICTORY!" : "Defeat");
-                String text = isLocalPlayer 
-                    ? "Congratulations! You connected four in a row!"
-                    : winnerName + " connected four in a row!";
-                alert.setContentText(text);
-                alert.setOnHidden(evt -> {
-                    if (stage != null) {
-                        stage.close();
-                    }
-                    if (onGameEnd != null) {
-                        onGameEnd.run();
-                    }
-                });
-                alert.show();
+        // The server replays the moves and commits the win itself
+        Platform.runLater(() -> {
+            Alert alert = new Alert(Alert.AlertType.INFORMATION);
+            alert.setTitle("Game Complete!");
+            alert.setHeaderText(isLocalPlayer ? "VICTORY!" : "Defeat");
+            String text = isLocalPlayer 
+                ? "Congratulations! You connected four in a row!"
+                : winnerName + " connected four in a row!";
+            alert.setContentText(text);
+            alert.setOnHidden(evt -> {
+                if (stage != null) {
+                    stage.close();
+                }
+                if (onGameEnd != null) {
+                    onGameEnd.run();
+                }
             });
-        } catch (JMSException e) {
-            e.printStackTrace();
-        }
+            alert.show();
+        });
+    }
+
+    /**
+     * Shows dialog for a game the server called off
+     */
+    private void showCalledOff() {
+        if (gameOverDialogShown) return;
+        gameOverDialogShown = true;
+
+        Alert alert = new Alert(Alert.AlertType.INFORMATION);
+        alert.setTitle("Game Called Off");
+        alert.setHeaderText("Game Called Off");
+        alert.setContentText("The server could not record this game, it does not count");
+        alert.setOnHidden(evt -> {
+            if (stage != null) {
+                stage.close();
+            }
+            if (onGameEnd != null) {
+                onGameEnd.run();
+            }
+        });
+        alert.show();
     }
 
     /**
@@ -550,8 +555,6 @@ public class ConnectFourController{
     private void showDraw() {
         if (gameOverDialogShown) return;
         gameOverDialogShown = true;
-        
-        sendDrawResultToServer();
 
         Platform.runLater(() -> {
             Alert alert = new Alert(Alert.AlertType.INFORMATION);
@@ -570,27 +573,6 @@ public class ConnectFourController{
         });
     }
 
-    /**
-     * Sends draw result to server for processing
-     */
-    private void sendDrawResultToServer() {
-        try {
-            JSONObject obj = new JSONObject()
-                .put("queue", gameQueueName)
-                .put("type", "draw")
-                .put("gameId", Integer.parseInt(gameQueueName.replace("game-session-", "")))
-                .put("isDraw", true);
-
-            Destination resultQueue = session.createQueue("game-result");
-            MessageProducer producer = session.createProducer(resultQueue);
-            TextMessage msg = session.createTextMessage(obj.toString());
-            producer.send(msg);
-            producer.close();
-        } catch (JMSException e) {
-            e.printStackTrace();
-        }
-    }
-
     /**
      * Finds UI node at specific grid position
      */
@@ -618,7 +600,7 @@ public class ConnectFourController{
         this.isMyTurn = yourTurn;
         this.opponentUsername = opponentUsername;
 
-        ConnectionFactory factory = new ActiveMQConnectionFactory("tcp://localhost:61616");
+        ConnectionFactory factory = new ActiveMQConnectionFactory(GameClient.getBrokerUrl());
         connection = factory.createConnection();
         connection.start();
         session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
@@ -629,9 +611,8 @@ public class ConnectFourController{
         // Handle incoming game messages
         consumer.setMessageListener(message -> {
             try {
-                if (message instanceof TextMessage) {
-                    String json = ((TextMessage) message).getText();
-                    JSONObject obj = new JSONObject(json);
+                JSONObject obj = GameWireCodec.fromMessage(message);
+                if (obj != null) {
                     String type = obj.getString("type");
 
                     if (type.equals("move") && obj.getInt("playerId") != myPlayerId) {
@@ -671,6 +652,11 @@ public class ConnectFourController{
                             }
                         }
                     }
+                    else if (type.equals("aborted")) {
+                        // The server could not record the game and called it off
+                        gameOver = true;
+                        Platform.runLater(this::showCalledOff);
+                    }
                     else if (type.equals("resign") && !gameOverDialogShown) {
                         // Handle opponent resignation
                         gameOver = true;
@@ -725,6 +711,7 @@ public class ConnectFourController{
         try {
             Topic gameTopic = session.createTopic(gameQueueName);
             MessageProducer producer = session.createProducer(gameTopic);
+            producer.setDeliveryMode(DeliveryMode.NON_PERSISTENT);
 
             JSONObject obj = new JSONObject();
             obj.put("playerId", myPlayerId);
@@ -732,18 +719,8 @@ public class ConnectFourController{
             obj.put("col", col);
             obj.put("type", "move");
 
-            JSONArray boardArray = new JSONArray();
-            for (int r = 0; r < ROWS; r++) {
-                JSONArray rowArray = new JSONArray();
-                for (int c = 0; c < COLUMNS; c++) {
-                    rowArray.put(board[r][c]);
-                }
-                boardArray.put(rowArray);
-            }
-            obj.put("board", boardArray);
-
-            TextMessage msg = session.createTextMessage(obj.toString());
-            producer.send(msg);
+            // Only the move is sent, the opponent and the server replay it on their own boards
+            producer.send(GameWireCodec.toMessage(session, obj, wireVersion));
             producer.close();
         } catch (JMSException e) {
             e.printStackTrace();
@@ -828,6 +805,10 @@ public class ConnectFourController{
     public void setOnGameEnd(Runnable onGameEnd) {
         this.onGameEnd = onGameEnd;
     }
+
+    public void setWireVersion(int wireVersion) {
+        this.wireVersion = wireVersion;
+    }
     
     private void addHoverEffects() {
         // Forfeit button
@@ -0,0 +1,322 @@
+package gameServerJMS;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.SQLTransientConnectionException;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.ObjectName;
+
+/**
+ * Bounded pool of JDBC connections. Borrowers get a proxy whose close() hands the
+ * connection back, so code written against DriverManager connections keeps working.
+ *
+ * A semaphore caps the connections in use, borrowers past the cap wait up to the
+ * borrow timeout. Connections idle for a while are validated before they are handed
+ * out and retired once they reach their maximum lifetime. A housekeeping thread reports
+ * connections held longer than the leak threshold together with where they were taken.
+ * Pool state and borrow wait times are exposed as the gameServerJMS:type=ConnectionPool
+ * MXBean.
+ *
+ * Waiting is done on a semaphore and concurrent collections rather than monitors, so
+ * virtual threads waiting for a connection do not pin their carrier.
+ */
+public class ConnectionPool implements ConnectionPoolMXBean {
+    // Idle connections younger than this are handed out without a round trip to validate them
+    private static final long VALIDATE_AFTER_IDLE_MILLIS = 1000;
+    private static final int VALIDATION_TIMEOUT_SECONDS = 2;
+    private static final long HOUSEKEEPING_SECONDS = 10;
+
+    private final String url;
+    private final String user;
+    private final String password;
+    private final int maxSize;
+    private final long borrowTimeoutMillis;
+    private final long maxLifetimeMillis;
+    private final long leakThresholdMillis;
+
+    private final Semaphore permits;
+    // Most recently returned first, so a quiet period lets the tail age out
+    private final LinkedBlockingDeque<PooledConnection> idle = new LinkedBlockingDeque<>();
+    private final Map<PooledConnection, Lease> leased = new ConcurrentHashMap<>();
+    private final AtomicInteger total = new AtomicInteger();
+    private final WaitTimeHistogram borrowWaits = new WaitTimeHistogram();
+    private final LongAdder borrowTimeouts = new LongAdder();
+    private final LongAdder created = new LongAdder();
+    private final LongAdder retired = new LongAdder();
+    private final LongAdder leaks = new LongAdder();
+
+    public ConnectionPool(String url, String user, String password, int maxSize,
+                          long borrowTimeoutMillis, long maxLifetimeMillis, long leakThresholdMillis) {
+        this.url = url;
+        this.user = user;
+        this.password = password;
+        this.maxSize = maxSize;
+        this.borrowTimeoutMillis = borrowTimeoutMillis;
+        this.maxLifetimeMillis = maxLifetimeMillis;
+        this.leakThresholdMillis = leakThresholdMillis;
+        permits = new Semaphore(maxSize, true);
+
+        ScheduledExecutorService housekeeping = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "connection-pool");
+            thread.setDaemon(true);
+            return thread;
+        });
+        housekeeping.scheduleWithFixedDelay(this::housekeep, HOUSEKEEPING_SECONDS, HOUSEKEEPING_SECONDS, TimeUnit.SECONDS);
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                    new ObjectName("gameServerJMS:type=ConnectionPool"));
+        } catch (Exception e) {
+            System.err.println("Failed to register connection pool MXBean: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Borrows a connection, waiting up to the borrow timeout when all of them are in use
+     */
+    public Connection getConnection() throws SQLException {
+        long start = System.nanoTime();
+        try {
+            if (!permits.tryAcquire(borrowTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                borrowTimeouts.increment();
+                throw new SQLTransientConnectionException("No database connection free after " + borrowTimeoutMillis
+                        + " ms, all " + maxSize + " in use");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SQLTransientConnectionException("Interrupted while waiting for a database connection", e);
+        }
+
+        try {
+            PooledConnection pooled = takeIdle();
+            if (pooled == null) {
+                pooled = new PooledConnection(DriverManager.getConnection(url, user, password));
+                total.incrementAndGet();
+                created.increment();
+            }
+            borrowWaits.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+            Lease lease = new Lease(pooled);
+            leased.put(pooled, lease);
+            return (Connection) Proxy.newProxyInstance(ConnectionPool.class.getClassLoader(),
+                    new Class<?>[] { Connection.class }, lease);
+        } catch (SQLException | RuntimeException e) {
+            permits.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Newest usable idle connection, or null when a new one has to be opened
+     */
+    private PooledConnection takeIdle() {
+        PooledConnection pooled;
+        while ((pooled = idle.pollFirst()) != null) {
+            long now = System.currentTimeMillis();
+            if (now - pooled.createdAt >= maxLifetimeMillis) {
+                retire(pooled);
+            } else if (now - pooled.returnedAt >= VALIDATE_AFTER_IDLE_MILLIS && !isValid(pooled)) {
+                retire(pooled);
+            } else {
+                return pooled;
+            }
+        }
+        return null;
+    }
+
+    private static boolean isValid(PooledConnection pooled) {
+        try {
+            return pooled.physical.isValid(VALIDATION_TIMEOUT_SECONDS);
+        } catch (SQLException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Takes a connection back from a closed lease, connections left mid transaction are
+     * rolled back and broken or aged ones are closed instead of reused
+     */
+    private void giveBack(PooledConnection pooled) {
+        leased.remove(pooled);
+        try {
+            boolean reusable = !pooled.physical.isClosed()
+                    && System.currentTimeMillis() - pooled.createdAt < maxLifetimeMillis;
+            if (reusable && !pooled.physical.getAutoCommit()) {
+                pooled.physical.rollback();
+                pooled.physical.setAutoCommit(true);
+            }
+            if (reusable) {
+                pooled.returnedAt = System.currentTimeMillis();
+                idle.offerFirst(pooled);
+            } else {
+                retire(pooled);
+            }
+        } catch (SQLException e) {
+            retire(pooled);
+        } finally {
+            permits.release();
+        }
+    }
+
+    private void retire(PooledConnection pooled) {
+        total.decrementAndGet();
+        retired.increment();
+        try {
+            pooled.physical.close();
+        } catch (SQLException e) {
+            // Already broken, nothing left to release
+        }
+    }
+
+    /**
+     * Retires idle connections past their lifetime and reports leases held too long
+     */
+    private void housekeep() {
+        long now = System.currentTimeMillis();
+        for (PooledConnection pooled : idle) {
+            if (now - pooled.createdAt >= maxLifetimeMillis && idle.remove(pooled)) {
+                retire(pooled);
+            }
+        }
+        if (leakThresholdMillis <= 0) return;
+        for (Lease lease : leased.values()) {
+            if (!lease.reported && now - lease.borrowedAt >= leakThresholdMillis) {
+                lease.reported = true;
+                leaks.increment();
+                System.err.println("Database connection held for " + (now - lease.borrowedAt)
+                        + " ms, possible leak. Borrowed at:");
+                lease.borrowedFrom.printStackTrace();
+            }
+        }
+    }
+
+    @Override
+    public int getActiveConnections() {
+        return leased.size();
+    }
+
+    @Override
+    public int getIdleConnections() {
+        return idle.size();
+    }
+
+    @Override
+    public int getTotalConnections() {
+        return total.get();
+    }
+
+    @Override
+    public int getMaxConnections() {
+        return maxSize;
+    }
+
+    @Override
+    public int getWaitingBorrowers() {
+        return permits.getQueueLength();
+    }
+
+    @Override
+    public long getBorrowWaitP50Millis() {
+        return borrowWaits.valueAtQuantile(0.5);
+    }
+
+    @Override
+    public long getBorrowWaitP99Millis() {
+        return borrowWaits.valueAtQuantile(0.99);
+    }
+
+    @Override
+    public long getBorrowWaitMaxMillis() {
+        return borrowWaits.getMax();
+    }
+
+    @Override
+    public long getBorrowTimeouts() {
+        return borrowTimeouts.sum();
+    }
+
+    @Override
+    public long getConnectionsCreated() {
+        return created.sum();
+    }
+
+    @Override
+    public long getConnectionsRetired() {
+        return retired.sum();
+    }
+
+    @Override
+    public long getSuspectedLeaks() {
+        return leaks.sum();
+    }
+
+    private static class PooledConnection {
+        final Connection physical;
+        final long createdAt = System.currentTimeMillis();
+        volatile long returnedAt = createdAt;
+
+        PooledConnection(Connection physical) {
+            this.physical = physical;
+        }
+    }
+
+    /**
+     * One borrow of a pooled connection, backs the proxy handed to the borrower. Calls
+     * after close() fail like they would on a closed DriverManager connection.
+     */
+    private class Lease implements InvocationHandler {
+        final PooledConnection pooled;
+        final long borrowedAt = System.currentTimeMillis();
+        // Where the connection was taken, only captured when leak detection is on
+        final Exception borrowedFrom = leakThresholdMillis > 0 ? new Exception("Connection borrowed here") : null;
+        volatile boolean reported;
+        private final AtomicInteger closed = new AtomicInteger();
+
+        Lease(PooledConnection pooled) {
+            this.pooled = pooled;
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            switch (method.getName()) {
+                case "close":
+                    if (closed.compareAndSet(0, 1)) {
+                        giveBack(pooled);
+                    }
+                    return null;
+                case "isClosed":
+                    return closed.get() != 0 || pooled.physical.isClosed();
+                case "equals":
+                    return proxy == args[0];
+                case "hashCode":
+                    return System.identityHashCode(proxy);
+                case "toString":
+                    return "Pooled " + pooled.physical;
+                default:
+                    break;
+            }
+            if (closed.get() != 0) {
+                throw new SQLException("Connection is closed");
+            }
+            try {
+                return method.invoke(pooled.physical, args);
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        }
+    }
+}
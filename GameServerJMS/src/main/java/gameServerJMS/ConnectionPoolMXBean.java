@@ -0,0 +1,19 @@
+package gameServerJMS;
+
+/**
+ * JMX view of the database connection pool, see ConnectionPool
+ */
+public interface ConnectionPoolMXBean {
+    int getActiveConnections();
+    int getIdleConnections();
+    int getTotalConnections();
+    int getMaxConnections();
+    int getWaitingBorrowers();
+    long getBorrowWaitP50Millis();
+    long getBorrowWaitP99Millis();
+    long getBorrowWaitMaxMillis();
+    long getBorrowTimeouts();
+    long getConnectionsCreated();
+    long getConnectionsRetired();
+    long getSuspectedLeaks();
+}
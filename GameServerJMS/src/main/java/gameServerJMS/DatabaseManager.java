@@ -1,38 +1,40 @@
 package gameServerJMS;
 
 import java.sql.Connection;
-import java.sql.DriverManager;
-import java.sql.PreparedStatement;
 import java.sql.SQLException;
 
 public class DatabaseManager {
-    private static final String DB_URL = "jdbc:mysql://localhost:3306/gameserverdb";
-    private static final String DB_USER = " "; // Change name to match ur database name
-    private static final String DB_PASSWORD = " "; // Change password to match ur database user password
+    // The gameServerJMS.db* properties point the server at another database, e.g. the load simulator's in-memory one
+    private static final String DB_URL = withStatementCache(
+            System.getProperty("gameServerJMS.dbUrl", "jdbc:mysql://localhost:3306/gameserverdb"));
+    private static final String DB_USER = System.getProperty("gameServerJMS.dbUser", " "); // Change name to match ur database name
+    private static final String DB_PASSWORD = System.getProperty("gameServerJMS.dbPassword", " "); // Change password to match ur database user password
+
+    // Connections are reused instead of paying a handshake per lookup, closing one hands it back
+    private static final ConnectionPool POOL = new ConnectionPool(DB_URL, DB_USER, DB_PASSWORD,
+            Integer.getInteger("gameServerJMS.dbPoolSize", 20),
+            Long.getLong("gameServerJMS.dbBorrowTimeoutMillis", 5000),
+            1000 * Long.getLong("gameServerJMS.dbMaxLifetimeSeconds", 1800),
+            1000 * Long.getLong("gameServerJMS.dbLeakSeconds", 60));
+
+    // Server side prepared statements kept open per connection, so each pooled connection
+    // parses a statement of Query once instead of on every call
+    private static final String STATEMENT_CACHE = "useServerPrepStmts=true&cachePrepStmts=true"
+            + "&prepStmtCacheSize=256&prepStmtCacheSqlLimit=4096";
 
     /**
-     * Creates new database connection using configured credentials
+     * Adds the statement cache settings to MySQL URLs that do not set them, other drivers
+     * would reject the options
      */
-    public static Connection getConnection() throws SQLException {
-        return DriverManager.getConnection(DB_URL, DB_USER, DB_PASSWORD);
+    static String withStatementCache(String url) {
+        if (!url.startsWith("jdbc:mysql:") || url.contains("cachePrepStmts")) return url;
+        return url + (url.contains("?") ? "&" : "?") + STATEMENT_CACHE;
     }
 
     /**
-     * Inserts new game record into database
+     * Borrows a pooled database connection, closing it returns it to the pool
      */
-    public static int insertGame(int typeId, int playerAId, int playerBId) {
-        String sql = "INSERT INTO Games (type_id, player_a, player_b) VALUES (?, ?, ?)";
-        try (Connection conn = getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setInt(1, typeId);
-            stmt.setInt(2, playerAId);
-            stmt.setInt(3, playerBId);
-            stmt.executeUpdate();
-            System.out.println("Game inserted into database.");
-            return 1;
-        } catch (SQLException e) {
-            e.printStackTrace();
-            return -1;
-        }
+    public static Connection getConnection() throws SQLException {
+        return POOL.getConnection();
     }
 }
\ No newline at end of file
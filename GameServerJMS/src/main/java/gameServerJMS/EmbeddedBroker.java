@@ -0,0 +1,69 @@
+package gameServerJMS;
+
+import java.io.File;
+import java.util.Arrays;
+
+import org.apache.activemq.broker.BrokerService;
+import org.apache.activemq.broker.region.policy.ConstantPendingMessageLimitStrategy;
+import org.apache.activemq.broker.region.policy.PolicyEntry;
+import org.apache.activemq.broker.region.policy.PolicyMap;
+import org.apache.activemq.store.kahadb.KahaDBPersistenceAdapter;
+
+/**
+ * ActiveMQ broker running inside the GameServer process for single node deployments.
+ * The server talks to it over the vm:// transport, remote clients connect to its
+ * NIO connector with their usual tcp:// URL.
+ */
+public class EmbeddedBroker {
+    public static final String BROKER_NAME = "gameserver";
+    public static final String VM_URL = "vm://" + BROKER_NAME + "?create=false";
+    private static final String CLIENT_CONNECTOR_URL = System.getProperty("gameServerJMS.connectorUrl", "nio://0.0.0.0:61616");
+    private static final String DATA_DIRECTORY = System.getProperty("gameServerJMS.brokerDataDir", "activemq-data");
+    private static final long MEMORY_LIMIT_BYTES = 256L * 1024 * 1024;
+
+    /**
+     * Starts the broker and blocks until it accepts connections
+     */
+    public static BrokerService start() throws Exception {
+        BrokerService broker = new BrokerService();
+        broker.setBrokerName(BROKER_NAME);
+        // Joins, cancels, results and player notifications survive a restart in KahaDB.
+        // Game topic traffic is sent non-persistent and never reaches the store.
+        KahaDBPersistenceAdapter store = new KahaDBPersistenceAdapter();
+        store.setDirectory(new File(DATA_DIRECTORY, "kahadb"));
+        broker.setPersistent(true);
+        broker.setDataDirectory(DATA_DIRECTORY);
+        broker.setPersistenceAdapter(store);
+        broker.setUseJmx(false);
+        broker.setSchedulerSupport(false);
+        broker.getSystemUsage().getMemoryUsage().setLimit(MEMORY_LIMIT_BYTES);
+
+        // Every game creates a game-session topic nobody uses after the game ends.
+        // A slow subscriber gets old moves dropped instead of blocking the game.
+        PolicyEntry topicPolicy = new PolicyEntry();
+        topicPolicy.setTopic(">");
+        topicPolicy.setProducerFlowControl(false);
+        topicPolicy.setGcInactiveDestinations(true);
+        topicPolicy.setInactiveTimeoutBeforeGC(60_000);
+        ConstantPendingMessageLimitStrategy pendingLimit = new ConstantPendingMessageLimitStrategy();
+        pendingLimit.setLimit(1000);
+        topicPolicy.setPendingMessageLimitStrategy(pendingLimit);
+
+        // player-N queues are likewise abandoned once a player logs out
+        PolicyEntry queuePolicy = new PolicyEntry();
+        queuePolicy.setQueue(">");
+        queuePolicy.setOptimizedDispatch(true);
+        queuePolicy.setGcInactiveDestinations(true);
+        queuePolicy.setInactiveTimeoutBeforeGC(300_000);
+
+        PolicyMap policyMap = new PolicyMap();
+        policyMap.setPolicyEntries(Arrays.asList(topicPolicy, queuePolicy));
+        broker.setDestinationPolicy(policyMap);
+
+        broker.addConnector(CLIENT_CONNECTOR_URL);
+        broker.start();
+        broker.waitUntilStarted();
+        System.out.println("Embedded broker listening on " + CLIENT_CONNECTOR_URL);
+        return broker;
+    }
+}
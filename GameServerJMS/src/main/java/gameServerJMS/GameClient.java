@@ -12,6 +12,9 @@ import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 
 import javax.jms.*;
 
@@ -25,7 +28,7 @@ public class GameClient extends Application {
     
     private static final double WINDOW_WIDTH = 800;
     private static final double WINDOW_HEIGHT = 700;
-    private static final String BROKER_URL = "tcp://localhost:61616";
+    private static final String BROKER_URL = System.getProperty("gameServerJMS.brokerUrl", "tcp://localhost:61616");
     
     private Session session;
     private javax.jms.Connection connection;
@@ -33,7 +36,12 @@ public class GameClient extends Application {
     private static int playerId = -1;
     private String username;
     private MessageConsumer consumer;
-    private int currentTypeId;
+    private int consumerPlayerId;
+    // Game types the player is queued for, typeId to game name, only touched on the FX thread
+    private final Map<Integer, String> queuedGames = new LinkedHashMap<>();
+    // Stats of the logged in player, overall and per game type, dropped when a game starts
+    // or the player logs out so the selection screen only reads them again after a game
+    private JSONObject playerStats;
 
     public static void main(String[] args) {
         launch(args);
@@ -55,6 +63,7 @@ public class GameClient extends Application {
      * Displays login screen for user authentication
      */
     public void showLoginScreen() {
+        playerStats = null;
         try {
             FXMLLoader loader = new FXMLLoader(getClass().getResource("/login.fxml"));
             Parent root = loader.load();
@@ -111,11 +120,6 @@ public class GameClient extends Application {
                 controller.setGameClient(this);
                 controller.initializeSelection(playerId, username, isWaiting, gameName);
                 
-                // Pass current type ID if waiting in queue
-                if (isWaiting && currentTypeId > 0) {
-                    controller.setCurrentTypeId(currentTypeId);
-                }
-                
                 Scene scene = new Scene(root, WINDOW_WIDTH, WINDOW_HEIGHT);
                 primaryStage.setTitle("Game Selection - " + username);
                 primaryStage.setScene(scene);
@@ -248,23 +252,15 @@ public class GameClient extends Application {
     }
 
     /**
-     * Cancels matchmaking queue and returns to game selection
+     * Cancels every matchmaking queue the player is in and returns to game selection
      */
-    public void cancelWaiting(int playerId, int typeId) {
+    public void cancelWaiting(int playerId) {
         try {
-            if (connection == null || session == null) {
-                ConnectionFactory connectionFactory = new ActiveMQConnectionFactory(BROKER_URL);
-                connection = connectionFactory.createConnection();
-                connection.start();
-                session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+            openSession();
+            for (int typeId : queuedGames.keySet()) {
+                sendCancel(playerId, typeId);
             }
-
-            // Send cancel message to server
-            Destination cancelQueue = session.createQueue("game-cancel");
-            MessageProducer cancelProducer = session.createProducer(cancelQueue);
-            String content = playerId + ":" + typeId; 
-            TextMessage message = session.createTextMessage(content);
-            cancelProducer.send(message);
+            queuedGames.clear();
 
             Platform.runLater(() -> {
                 showGameSelectionScreen(playerId, false, "", username);
@@ -275,82 +271,155 @@ public class GameClient extends Application {
         }
     }
 
+    private void sendCancel(int playerId, int typeId) throws JMSException {
+        Destination cancelQueue = session.createQueue("game-cancel");
+        MessageProducer cancelProducer = session.createProducer(cancelQueue);
+        String content = playerId + ":" + typeId; 
+        TextMessage message = session.createTextMessage(content);
+        message.setStringProperty("JMSXGroupID", ClusterCoordinator.groupFor(typeId));
+        cancelProducer.send(message);
+        cancelProducer.close();
+    }
+
     /**
-     * Handles player joins game matchmaking queue
+     * Tells the servers to drop their cached copy of this player's username
      */
-    public void joinGameQueue(int playerId, int typeId, String gameName) {
-        this.currentTypeId = typeId;
-        
+    private void publishProfileChange() {
         try {
-            // Initialize JMS connection
-            ConnectionFactory factory = new ActiveMQConnectionFactory(BROKER_URL);
-            connection = factory.createConnection();
+            openSession();
+            MessageProducer producer = session.createProducer(session.createTopic(GameServer.PROFILE_TOPIC));
+            producer.send(session.createTextMessage(new JSONObject()
+                .put("playerIds", List.of(playerId))
+                .toString()));
+            producer.close();
+        } catch (JMSException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private void openSession() throws JMSException {
+        if (connection == null || session == null) {
+            ConnectionFactory connectionFactory = new ActiveMQConnectionFactory(BROKER_URL);
+            connection = connectionFactory.createConnection();
             connection.start();
             session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        }
+    }
+
+    /**
+     * Adds a game type to the matchmaking queues the player is in. A player can wait
+     * for several types at once, the first one that finds an opponent starts and the
+     * server withdraws the player from the others.
+     */
+    public void joinGameQueue(int playerId, int typeId, String gameName) {
+        if (queuedGames.containsKey(typeId)) return;
+        queuedGames.put(typeId, gameName);
+        
+        try {
+            openSession();
+            listenForMatch(playerId);
             
             // Send join request to server
             Destination joinQueue = session.createQueue("game-join");
             MessageProducer joinProducer = session.createProducer(joinQueue);
-            String content = playerId + ":" + typeId;
-            joinProducer.send(session.createTextMessage(content));
+            // Advertise the binary game wire version this client understands
+            String content = playerId + ":" + typeId + ":" + GameWireCodec.VERSION;
+            TextMessage joinMessage = session.createTextMessage(content);
+            // All joins of a type go to the server instance owning that type
+            joinMessage.setStringProperty("JMSXGroupID", ClusterCoordinator.groupFor(typeId));
+            joinProducer.send(joinMessage);
+            joinProducer.close();
 
-            Destination playerQueue = session.createQueue("player-" + playerId);
-            consumer = session.createConsumer(playerQueue); 
-
-            consumer.setMessageListener(message -> {
-                try {
-                    if (message instanceof TextMessage) {
-                        String responseText = ((TextMessage) message).getText();
-                        JSONObject jsonResponse = new JSONObject(responseText);
-                        
-                        String gameQueue = jsonResponse.getString("queue");
-                        boolean isYourTurn = jsonResponse.optBoolean("yourTurn", false);
-                        String yourUsername = jsonResponse.optString("yourUsername", this.username);
-                        String opponentUsername = jsonResponse.optString("opponentUsername", "Opponent");
-
-                        Platform.runLater(() -> {
-                            if (gameQueue.equals("WAITING")) {
-                                // Still waiting for opponent
-                                showGameSelectionScreen(playerId, true, gameName, username);
-                            } else if (gameQueue.equals("ALREADY_IN_GAME")) {
-                                // Player is already in an active game
-                                showAlreadyInGameDialog();
-                                showGameSelectionScreen(playerId, false, "", username);
-                            } else {
-                                // Game found, start appropriate game
-                                startGame(playerId, gameQueue, isYourTurn, yourUsername, opponentUsername);
-                            }
-                        });
-                    }
-                } catch (Exception e) {
-                    e.printStackTrace();
-                }
-            });
-
-            showGameSelectionScreen(playerId, true, gameName, username);
+            showGameSelectionScreen(playerId, true, queuedGameNames(), username);
 
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Subscribes to the player's queue once, it carries the replies to every join
+     */
+    private void listenForMatch(int playerId) throws JMSException {
+        if (consumer != null && consumerPlayerId == playerId) return;
+        if (consumer != null) consumer.close();
+
+        Destination playerQueue = session.createQueue("player-" + playerId);
+        consumer = session.createConsumer(playerQueue); 
+        consumerPlayerId = playerId;
+
+        consumer.setMessageListener(message -> {
+            try {
+                if (message instanceof TextMessage) {
+                    String responseText = ((TextMessage) message).getText();
+                    JSONObject jsonResponse = new JSONObject(responseText);
+                    
+                    String gameQueue = jsonResponse.getString("queue");
+                    boolean isYourTurn = jsonResponse.optBoolean("yourTurn", false);
+                    String yourUsername = jsonResponse.optString("yourUsername", this.username);
+                    String opponentUsername = jsonResponse.optString("opponentUsername", "Opponent");
+                    int wireVersion = jsonResponse.optInt("wireVersion", GameWireCodec.JSON_ONLY);
+                    int typeId = jsonResponse.optInt("typeId", 0);
+
+                    Platform.runLater(() -> {
+                        // Nothing queued means a game already started, late replies to the other joins are dropped
+                        if (queuedGames.isEmpty()) return;
+
+                        if (gameQueue.equals("WAITING")) {
+                            // Still waiting for opponent
+                            showGameSelectionScreen(playerId, true, queuedGameNames(), username);
+                        } else if (gameQueue.equals("ALREADY_IN_GAME")) {
+                            // Player is already in an active game
+                            queuedGames.clear();
+                            showAlreadyInGameDialog();
+                            showGameSelectionScreen(playerId, false, "", username);
+                        } else {
+                            // Game found, the server withdraws the other entries, the cancels
+                            // cover types queued on another server instance
+                            int matchedTypeId = typeId > 0 ? typeId : queuedGames.keySet().iterator().next();
+                            try {
+                                for (int otherTypeId : queuedGames.keySet()) {
+                                    if (otherTypeId != matchedTypeId) {
+                                        sendCancel(playerId, otherTypeId);
+                                    }
+                                }
+                            } catch (JMSException e) {
+                                e.printStackTrace();
+                            }
+                            queuedGames.clear();
+                            startGame(playerId, matchedTypeId, gameQueue, isYourTurn, yourUsername, opponentUsername, wireVersion);
+                        }
+                    });
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    private String queuedGameNames() {
+        return String.join(", ", queuedGames.values());
+    }
+
     /**
      * Launches appropriate game
      */
-    private void startGame(int playerId, String gameQueue, boolean isYourTurn, String yourUserName, String opponentUsername) {
+    private void startGame(int playerId, int typeId, String gameQueue, boolean isYourTurn, String yourUserName, String opponentUsername, int wireVersion) {
         Platform.runLater(() -> {
+            // The result of this game changes the stats
+            playerStats = null;
             try {
-                switch(currentTypeId) {
+                switch(typeId) {
                     case 1: // Connect Four
-                        launchConnectFour(playerId, gameQueue, isYourTurn, yourUserName, opponentUsername);
+                        launchConnectFour(playerId, gameQueue, isYourTurn, yourUserName, opponentUsername, wireVersion);
                         break;
                         
                     case 2: // Battleship
-                        launchBattleship(playerId, gameQueue, isYourTurn, yourUserName, opponentUsername);
+                        launchBattleship(playerId, gameQueue, isYourTurn, yourUserName, opponentUsername, wireVersion);
                         break;
                         
                     case 3: // Just Not One
-                        launchJustNotOne(playerId, gameQueue, isYourTurn, yourUserName, opponentUsername);
+                        launchJustNotOne(playerId, gameQueue, isYourTurn, yourUserName, opponentUsername, wireVersion);
                         break;
                         
                     default:
@@ -366,7 +435,7 @@ public class GameClient extends Application {
     /**
      * Launches Connect Four game with controller setup
      */
-    private void launchConnectFour(int playerId, String gameQueue, boolean isYourTurn, String yourUserName, String opponentUsername) throws Exception {
+    private void launchConnectFour(int playerId, String gameQueue, boolean isYourTurn, String yourUserName, String opponentUsername, int wireVersion) throws Exception {
         FXMLLoader connectFourLoader = new FXMLLoader(getClass().getResource("/connect_four.fxml"));
         Parent connectFourRoot = connectFourLoader.load();
         ConnectFourController connectFourController = connectFourLoader.getController();
@@ -383,13 +452,14 @@ public class GameClient extends Application {
         connectFourStage.setResizable(false);
         connectFourStage.show();
         
+        connectFourController.setWireVersion(wireVersion);
         connectFourController.connectToGame(gameQueue, playerId, isYourTurn, yourUserName, opponentUsername);
     }
     
     /**
      * Launches Battleship game with controller setup
      */
-    private void launchBattleship(int playerId, String gameQueue, boolean isYourTurn, String yourUserName, String opponentUsername) throws Exception {
+    private void launchBattleship(int playerId, String gameQueue, boolean isYourTurn, String yourUserName, String opponentUsername, int wireVersion) throws Exception {
         FXMLLoader battleshipLoader = new FXMLLoader(getClass().getResource("/battleship.fxml"));
         Parent battleshipRoot = battleshipLoader.load();
         BattleshipController battleshipController = battleshipLoader.getController();
@@ -406,13 +476,14 @@ public class GameClient extends Application {
         battleshipStage.setResizable(false);
         battleshipStage.show();
         
+        battleshipController.setWireVersion(wireVersion);
         battleshipController.connectToGame(gameQueue, playerId, isYourTurn, yourUserName, opponentUsername);
     }
     
     /**
      * Launches Just Not One game with controller setup
      */
-    private void launchJustNotOne(int playerId, String gameQueue, boolean isYourTurn, String yourUserName, String opponentUsername) throws Exception {
+    private void launchJustNotOne(int playerId, String gameQueue, boolean isYourTurn, String yourUserName, String opponentUsername, int wireVersion) throws Exception {
         FXMLLoader justNotOneLoader = new FXMLLoader(getClass().getResource("/just_not_one.fxml"));
         Parent justNotOneRoot = justNotOneLoader.load();
         JustNotOneController justNotOneController = justNotOneLoader.getController();
@@ -428,6 +499,7 @@ public class GameClient extends Application {
         justNotOneStage.setScene(justNotOneScene);
         justNotOneStage.show();
         
+        justNotOneController.setWireVersion(wireVersion);
         justNotOneController.connectToGame(gameQueue, playerId, isYourTurn, yourUserName, opponentUsername);
     }
     
@@ -444,27 +516,45 @@ public class GameClient extends Application {
     }
     
     /**
-     * Retrieves player statistics from database for display
+     * Retrieves player statistics for display, overall and under "byType" per game type id.
+     * Both come from primary key lookups, so their cost does not grow with the game history,
+     * and are kept in memory until the player's next game.
      */
     public JSONObject getPlayerStats(int playerId) {
+        if (playerStats != null && playerStats.getInt("playerId") == playerId) {
+            return playerStats;
+        }
         try (Connection conn = DatabaseManager.getConnection()) {
-            String sql = "SELECT p.current_rating, s.wins, s.losses, s.draws " +
-                         "FROM Players p JOIN Stats s ON p.player_id = s.player_id " +
-                         "WHERE p.player_id = ?";
-            
-            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            JSONObject stats = null;
+            try (PreparedStatement stmt = Query.PLAYER_STATS.prepare(conn)) {
                 stmt.setInt(1, playerId);
                 ResultSet rs = stmt.executeQuery();
                 
                 if (rs.next()) {
-                    JSONObject stats = new JSONObject();
+                    stats = new JSONObject();
+                    stats.put("playerId", playerId);
                     stats.put("rating", rs.getInt("current_rating"));
                     stats.put("wins", rs.getInt("wins"));
                     stats.put("losses", rs.getInt("losses"));
                     stats.put("draws", rs.getInt("draws"));
-                    return stats;
                 }
             }
+            if (stats == null) return null;
+
+            JSONObject byType = new JSONObject();
+            try (PreparedStatement stmt = Query.PLAYER_TYPE_STATS.prepare(conn)) {
+                stmt.setInt(1, playerId);
+                ResultSet rs = stmt.executeQuery();
+                while (rs.next()) {
+                    byType.put(String.valueOf(rs.getInt("type_id")), new JSONObject()
+                        .put("wins", rs.getInt("wins"))
+                        .put("losses", rs.getInt("losses"))
+                        .put("draws", rs.getInt("draws")));
+                }
+            }
+            stats.put("byType", byType);
+            playerStats = stats;
+            return stats;
         } catch (SQLException e) {
             e.printStackTrace();
         }
@@ -476,13 +566,13 @@ public class GameClient extends Application {
      */
     public boolean updateUsername(String newUsername) {
         try (Connection conn = DatabaseManager.getConnection()) {
-            String sql = "UPDATE Players SET username = ? WHERE player_id = ?";
-            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            try (PreparedStatement stmt = Query.UPDATE_USERNAME.prepare(conn)) {
                 stmt.setString(1, newUsername);
                 stmt.setInt(2, playerId);
                 int rowsAffected = stmt.executeUpdate();
                 if (rowsAffected > 0) {
                     this.username = newUsername;
+                    publishProfileChange();
                     return true;
                 }
             }
@@ -498,8 +588,7 @@ public class GameClient extends Application {
     public boolean updatePassword(String oldPassword, String newPassword) {
         try (Connection conn = DatabaseManager.getConnection()) {
             // First verify the old password
-            String selectSql = "SELECT password_hash FROM Players WHERE player_id = ?";
-            try (PreparedStatement selectStmt = conn.prepareStatement(selectSql)) {
+            try (PreparedStatement selectStmt = Query.PASSWORD_HASH.prepare(conn)) {
                 selectStmt.setInt(1, getPlayerId());
                 ResultSet rs = selectStmt.executeQuery();
                 
@@ -513,8 +602,7 @@ public class GameClient extends Application {
                     
                     // Hash new password and update
                     String newHashedPassword = PasswordHasher.hashPassword(newPassword);
-                    String updateSql = "UPDATE Players SET password_hash = ? WHERE player_id = ?";
-                    try (PreparedStatement updateStmt = conn.prepareStatement(updateSql)) {
+                    try (PreparedStatement updateStmt = Query.UPDATE_PASSWORD_HASH.prepare(conn)) {
                         updateStmt.setString(1, newHashedPassword);
                         updateStmt.setInt(2, getPlayerId());
                         
@@ -534,8 +622,7 @@ public class GameClient extends Application {
     public static boolean registerPlayerCheck(String username, String password) {
         try (Connection conn = DatabaseManager.getConnection()) {
             // Check if username already exists
-            String checkSql = "SELECT COUNT(*) FROM Players WHERE username = ?";
-            try (PreparedStatement checkStmt = conn.prepareStatement(checkSql)) {
+            try (PreparedStatement checkStmt = Query.COUNT_USERNAME.prepare(conn)) {
                 checkStmt.setString(1, username);
                 ResultSet rs = checkStmt.executeQuery();
                 if (rs.next() && rs.getInt(1) > 0) {
@@ -547,8 +634,7 @@ public class GameClient extends Application {
             String hashedPassword = PasswordHasher.hashPassword(password);
             
             // Insert new player with hashed password
-            String insertSql = "INSERT INTO Players (username, password_hash, current_rating) VALUES (?, ?, 1000)";
-            try (PreparedStatement insertStmt = conn.prepareStatement(insertSql)) {
+            try (PreparedStatement insertStmt = Query.INSERT_PLAYER.prepare(conn)) {
                 insertStmt.setString(1, username);
                 insertStmt.setString(2, hashedPassword);
                 
@@ -556,15 +642,13 @@ public class GameClient extends Application {
                 
                 if (rowsAffected > 0) {
                     // Create stats entry for new player
-                    String getPlayerIdSql = "SELECT player_id FROM Players WHERE username = ?";
-                    try (PreparedStatement getIdStmt = conn.prepareStatement(getPlayerIdSql)) {
+                    try (PreparedStatement getIdStmt = Query.PLAYER_ID_BY_USERNAME.prepare(conn)) {
                         getIdStmt.setString(1, username);
                         ResultSet playerRs = getIdStmt.executeQuery();
                         if (playerRs.next()) {
                             int playerId = playerRs.getInt("player_id");
                             
-                            String statsSql = "INSERT INTO Stats (player_id, wins, losses, draws) VALUES (?, 0, 0, 0)";
-                            try (PreparedStatement statsStmt = conn.prepareStatement(statsSql)) {
+                            try (PreparedStatement statsStmt = Query.INSERT_STATS.prepare(conn)) {
                                 statsStmt.setInt(1, playerId);
                                 statsStmt.executeUpdate();
                             }
@@ -584,8 +668,7 @@ public class GameClient extends Application {
      */
     public static int loginPlayerCheck(String username, String password) {
         try (Connection conn = DatabaseManager.getConnection()) {
-            String sql = "SELECT player_id, password_hash FROM Players WHERE username = ?";
-            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            try (PreparedStatement stmt = Query.LOGIN.prepare(conn)) {
                 stmt.setString(1, username);
                 ResultSet rs = stmt.executeQuery();
                 
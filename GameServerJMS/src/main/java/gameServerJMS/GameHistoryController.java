@@ -60,18 +60,8 @@ public class GameHistoryController {
         historyList.getChildren().clear();
         
         try (Connection conn = DatabaseManager.getConnection()) {
-            // Query to get player's game history with opponent names and game types
-            String sql = "SELECT g.game_id, g.winner, g.loser, g.draw, g.end_time, g.player_a, g.player_b, " +
-                    "p1.username as player1_name, p2.username as player2_name, " +
-                    "gt.game_name as game_type " +
-                    "FROM games g " +
-                    "LEFT JOIN players p1 ON g.player_a = p1.player_id " +
-                    "LEFT JOIN players p2 ON g.player_b = p2.player_id " +
-                    "LEFT JOIN gametypes gt ON g.type_id = gt.type_id " +
-                    "WHERE (g.player_a = ? OR g.player_b = ?) AND g.stat = 'finished' " +
-                    "ORDER BY g.end_time DESC LIMIT 10";
-            
-            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            // Player's game history with opponent names and game types
+            try (PreparedStatement stmt = Query.GAME_HISTORY.prepare(conn)) {
                 stmt.setInt(1, playerId);
                 stmt.setInt(2, playerId);
                 ResultSet rs = stmt.executeQuery();
@@ -0,0 +1,163 @@
+package gameServerJMS;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Hands out game ids from blocks reserved in the game_id_sequence table, so a match
+ * gets its id without waiting for the Games insert.
+ *
+ * Reserving a block bumps the sequence row under a row lock, so several server
+ * instances never get overlapping blocks. The next block is fetched in the background
+ * once a quarter of the current one is left. Ids of a block that is not used up before
+ * a restart are skipped.
+ *
+ * The lock only guards the counters and is never held during a reservation, a caller
+ * that runs out of ids waits for the reservation in flight instead of starting another.
+ */
+public class GameIdAllocator {
+    private static final String SEQUENCE_NAME = "games";
+    private static final int BLOCK_SIZE = Integer.getInteger("gameServerJMS.gameIdBlockSize", 100);
+
+    private final Executor background;
+    private final ReentrantLock lock = new ReentrantLock();
+    // Signalled whenever a reservation finishes, successful or not
+    private final Condition fetched = lock.newCondition();
+    private long next;
+    private long limit;
+    // Block fetched ahead of time, {first, limit} or null
+    private long[] prefetched;
+    private boolean fetching;
+
+    public GameIdAllocator(Executor background) {
+        this.background = background;
+    }
+
+    /**
+     * Starts fetching the first block so the first match does not wait for it
+     */
+    public void start() {
+        lock.lock();
+        try {
+            prefetch();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int nextId() throws SQLException {
+        lock.lock();
+        try {
+            while (next >= limit) {
+                if (prefetched != null) {
+                    next = prefetched[0];
+                    limit = prefetched[1];
+                    prefetched = null;
+                } else if (fetching) {
+                    fetched.awaitUninterruptibly();
+                } else {
+                    // Prefetch fell behind and failed, reserve in line
+                    reserveInLine();
+                }
+            }
+            int id = (int) next++;
+            if (limit - next <= BLOCK_SIZE / 4) {
+                prefetch();
+            }
+            return id;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Reserves a block for the calling thread with the lock released meanwhile, other
+     * callers wait for it like for a prefetch. Called and returns with the lock held.
+     */
+    private void reserveInLine() throws SQLException {
+        fetching = true;
+        Long first = null;
+        lock.unlock();
+        try {
+            first = reserveBlock();
+        } finally {
+            lock.lock();
+            fetching = false;
+            if (first != null) {
+                prefetched = new long[] { first, first + BLOCK_SIZE };
+            }
+            fetched.signalAll();
+        }
+    }
+
+    /**
+     * Starts a background reservation unless one is running or ready, called with the lock held
+     */
+    private void prefetch() {
+        if (prefetched != null || fetching) return;
+        fetching = true;
+        background.execute(() -> {
+            Long first = null;
+            try {
+                first = reserveBlock();
+            } catch (SQLException e) {
+                System.err.println("Failed to reserve game ids: " + e.getMessage());
+            } finally {
+                lock.lock();
+                try {
+                    fetching = false;
+                    if (first != null) {
+                        prefetched = new long[] { first, first + BLOCK_SIZE };
+                    }
+                    fetched.signalAll();
+                } finally {
+                    lock.unlock();
+                }
+            }
+        });
+    }
+
+    /**
+     * Moves the sequence one block ahead and returns the first id of the block
+     */
+    private static long reserveBlock() throws SQLException {
+        try (Connection dbConn = DatabaseManager.getConnection()) {
+            dbConn.setAutoCommit(false);
+            try {
+                Long first = lockSequence(dbConn);
+                if (first == null) {
+                    // First run, continue after the games that already exist
+                    try (PreparedStatement stmt = Query.SEED_GAME_ID_SEQUENCE.prepare(dbConn)) {
+                        stmt.setString(1, SEQUENCE_NAME);
+                        stmt.executeUpdate();
+                    }
+                    first = lockSequence(dbConn);
+                }
+
+                try (PreparedStatement stmt = Query.ADVANCE_GAME_ID_SEQUENCE.prepare(dbConn)) {
+                    stmt.setInt(1, BLOCK_SIZE);
+                    stmt.setString(2, SEQUENCE_NAME);
+                    stmt.executeUpdate();
+                }
+                dbConn.commit();
+                return first;
+            } catch (SQLException e) {
+                dbConn.rollback();
+                throw e;
+            }
+        }
+    }
+
+    private static Long lockSequence(Connection dbConn) throws SQLException {
+        try (PreparedStatement stmt = Query.LOCK_GAME_ID_SEQUENCE.prepare(dbConn)) {
+            stmt.setString(1, SEQUENCE_NAME);
+            ResultSet rs = stmt.executeQuery();
+            return rs.next() ? rs.getLong("next_val") : null;
+        }
+    }
+}
@@ -0,0 +1,64 @@
+package gameServerJMS;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory index of the games currently being played, filled when matchmaking
+ * creates a game and cleared when its result is committed
+ */
+public class GameRegistry {
+    private final Map<Integer, ActiveGame> games = new ConcurrentHashMap<>();
+
+    public void register(ActiveGame game) {
+        games.put(game.gameId, game);
+    }
+
+    public ActiveGame get(int gameId) {
+        return games.get(gameId);
+    }
+
+    public ActiveGame remove(int gameId) {
+        return games.remove(gameId);
+    }
+
+    public int size() {
+        return games.size();
+    }
+
+    /**
+     * Returns the other player of a registered game, or -1 if the game is unknown
+     * or the player is not part of it
+     */
+    public int opponentOf(int gameId, int playerId) {
+        ActiveGame game = games.get(gameId);
+        if (game == null) return -1;
+        if (game.playerA == playerId) return game.playerB;
+        if (game.playerB == playerId) return game.playerA;
+        return -1;
+    }
+
+    /**
+     * Snapshot of one running game
+     */
+    public static class ActiveGame {
+        public final int gameId;
+        public final int playerA;
+        public final int playerB;
+        public final int typeId;
+        public final long startTime;
+        public final GameSessionActor actor;
+        public volatile String status = "active";
+        // Pending abandonment check, see GameServer.expireGame
+        public volatile HashedWheelTimer.Timeout timeout;
+
+        public ActiveGame(int gameId, int playerA, int playerB, int typeId, long startTime, GameSessionActor actor) {
+            this.gameId = gameId;
+            this.playerA = playerA;
+            this.playerB = playerB;
+            this.typeId = typeId;
+            this.startTime = startTime;
+            this.actor = actor;
+        }
+    }
+}
@@ -3,6 +3,7 @@ package gameServerJMS;
 import javafx.fxml.FXML;
 import javafx.scene.control.Button;
 import javafx.scene.control.Label;
+import javafx.scene.control.Tooltip;
 import javafx.scene.layout.*;
 import javafx.stage.Stage;
 
@@ -29,7 +30,6 @@ public class GameSelectionController{
     
     private GameClient gameClient;
     private int playerId;
-    private int currentTypeId = 0;
     
     public void initialize() {
         addHoverEffects();
@@ -41,10 +41,6 @@ public class GameSelectionController{
         this.gameClient = gameClient;
     }
     
-    public void setCurrentTypeId(int typeId) {
-        this.currentTypeId = typeId;
-    }
-    
     /**
      * Initializes screen with player statistics and queue status
      */
@@ -62,9 +58,14 @@ public class GameSelectionController{
             
             ratingLabel.setText(String.format("rating: %d | wins: %d | loses: %d | draws: %d", 
                 rating, wins, losses, draws));
+
+            JSONObject byType = playerStats.getJSONObject("byType");
+            showTypeStats(connectFourButton, "ConnectFour", byType.optJSONObject("1"));
+            showTypeStats(battleShipsButton, "BattleShips", byType.optJSONObject("2"));
+            showTypeStats(justNotOneButton, "Just Not One", byType.optJSONObject("3"));
         }
         
-        // Show queue status
+        // Show queue status, gameName lists every game the player is queued for
         if (isWaiting) {
             statusLabel.setText("Looking for another player (" + gameName + ")...");
             statusLabel.setVisible(true);
@@ -75,6 +76,17 @@ public class GameSelectionController{
         }
     }
     
+    /**
+     * Shows the player's record in one game type on its button
+     */
+    private void showTypeStats(Button button, String gameName, JSONObject typeStats) {
+        int wins = typeStats != null ? typeStats.getInt("wins") : 0;
+        int losses = typeStats != null ? typeStats.getInt("losses") : 0;
+        int draws = typeStats != null ? typeStats.getInt("draws") : 0;
+        button.setTooltip(new Tooltip(String.format("%s - wins: %d | loses: %d | draws: %d",
+            gameName, wins, losses, draws)));
+    }
+    
     // Button click handlers
     
     @FXML
@@ -87,30 +99,25 @@ public class GameSelectionController{
         gameClient.showMyAccount();
     }
     
+    // Each game button adds its type to the queues the player waits in
     @FXML
     private void handleConnectFour() {
-        currentTypeId = 1;
         gameClient.joinGameQueue(playerId, 1, "ConnectFour");
     }
     
     @FXML
     private void handleBattleShips() {
-        currentTypeId = 2;
         gameClient.joinGameQueue(playerId, 2, "BattleShips");
     }
     
     @FXML
     private void handleJustNotOne() {
-        currentTypeId = 3;
         gameClient.joinGameQueue(playerId, 3, "Just Not One");
     }
     
     @FXML
     private void handleCancelQueue() {
-        if (currentTypeId > 0) {
-            gameClient.cancelWaiting(playerId, currentTypeId);
-            currentTypeId = 0; // Reset after canceling
-        }
+        gameClient.cancelWaiting(playerId);
     }
     
     @FXML
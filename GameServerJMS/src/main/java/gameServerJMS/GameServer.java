@@ -1,69 +1,223 @@
 package gameServerJMS;
 
 import org.apache.activemq.ActiveMQConnectionFactory;
+import org.apache.activemq.ActiveMQSession;
 import org.json.JSONObject;
 
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.sql.Statement;
+import java.sql.SQLRecoverableException;
+import java.sql.SQLTransientException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.Queue;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import javax.jms.*;
 
 public class GameServer {
     private static final String BROKER_URL = "tcp://localhost:61616";
-    private static final Map<Integer, Queue<String>> waitingPlayersMap = new ConcurrentHashMap<>();
+    // Waiting players per typeId, each queue is only touched from its type's matchmaking partition
+    private static final Map<Integer, WaitingQueue> waitingPlayersMap = new ConcurrentHashMap<>();
+    // Players claimed by a game, a player joins a game only by being added here, see claimPlayers
     private static final Set<Integer> playersInGame = ConcurrentHashMap.newKeySet();
+    // Same waiting players ordered by rating, used to pick opponents
+    private static final Map<Integer, RatingIndex> ratingIndexes = new ConcurrentHashMap<>();
+    private static final long MATCH_SWEEP_MILLIS = Long.getLong("gameServerJMS.matchSweepMillis", 1000);
+    // When set, joins are gathered and paired in batches every tick instead of one at a time
+    private static final long MATCH_TICK_MILLIS = Long.getLong("gameServerJMS.matchTickMillis", 0);
+    // Joins since the last tick in arrival order and usernames of waiting players, only used in tick mode
+    private static final Map<Integer, LinkedHashSet<String>> pendingJoins = new ConcurrentHashMap<>();
+    private static final Map<Integer, String> waitingUsernames = new ConcurrentHashMap<>();
+    // Usernames and ratings of recently seen players, kept current by rating commits and invalidations
+    private static final PlayerProfileCache playerProfiles = new PlayerProfileCache(
+            Integer.getInteger("gameServerJMS.profileCacheSize", 100_000),
+            1000 * Long.getLong("gameServerJMS.profileCacheSeconds", 600));
+    // Carries ids of players whose row changed, published by clients and by other instances
+    static final String PROFILE_TOPIC = "player-profile-changed";
+    // Queue depth, counters and wait times per type, over JMX and a text endpoint
+    private static final MatchmakingMetrics metrics = new MatchmakingMetrics();
+    private static final int METRICS_PORT = Integer.getInteger("gameServerJMS.metricsPort", 9404);
+    // Deadlines of waiting players and running games, expired ones are evicted
+    private static final HashedWheelTimer reaper = new HashedWheelTimer("reaper", 1, TimeUnit.SECONDS, 512);
+    private static final long QUEUE_TIMEOUT_MILLIS = 1000 * Long.getLong("gameServerJMS.queueTimeoutSeconds", 600);
+    private static final long GAME_IDLE_TIMEOUT_MILLIS = 1000 * Long.getLong("gameServerJMS.gameIdleTimeoutSeconds", 900);
+    // Wire version each waiting player advertised when joining, see GameWireCodec
+    private static final Map<String, Integer> playerWireVersions = new ConcurrentHashMap<>();
+    // Types each player is waiting for, a player can queue for several at once and the first match wins
+    private static final Map<String, Set<Integer>> waitingTypes = new ConcurrentHashMap<>();
     public static int sessionCounter = 1;
 
+    // Matchmaking work is partitioned by typeId so joins and cancels for one queue stay ordered
+    private static final PartitionedExecutor matchmakingWorkers = new PartitionedExecutor("matchmaking", 4, 1024);
+    // Result work is partitioned by gameId so every message of a game is applied in order
+    private static final PartitionedExecutor resultWorkers = new PartitionedExecutor("game-result", 64, 1024);
+    // Lookups that need no ordering run on their own virtual thread each
+    private static final ExecutorService databaseWorkers = Executors.newVirtualThreadPerTaskExecutor();
+    // Game ids are reserved in blocks so a match never waits for its Games insert
+    private static final GameIdAllocator gameIdAllocator = new GameIdAllocator(databaseWorkers);
+    private static final int PERSIST_ATTEMPTS = 3;
+    // JMS sessions are single threaded, so each worker thread sends through its own session
+    private static final ThreadLocal<NotificationSender> workerSenders = new ThreadLocal<>();
+    private static javax.jms.Connection connection;
+    // Running games with their players and session actor, whose mailbox is the gameId partition of resultWorkers
+    private static final GameRegistry gameRegistry = new GameRegistry();
+    // Games whose result was already taken, results posted for them later are dropped on arrival
+    private static final RecentGameIds finishedGames = new RecentGameIds(
+            Integer.getInteger("gameServerJMS.finishedGameCacheSize", 100_000),
+            1000 * Long.getLong("gameServerJMS.finishedGameCacheSeconds", 3600));
+    private static Session actorSession;
+    // Set when several instances share the broker, each needs its own state file then
+    private static final String INSTANCE_ID = System.getProperty("gameServerJMS.instanceId");
+    private static ClusterCoordinator cluster;
+    // Waiting queues and running games survive restarts through this journal
+    private static final String STATE_FILE = System.getProperty("gameServerJMS.stateFile",
+            INSTANCE_ID == null ? "matchmaking-state.dat" : "matchmaking-state-" + INSTANCE_ID + ".dat");
+    private static final long SNAPSHOT_INTERVAL_SECONDS = Long.getLong("gameServerJMS.snapshotSeconds", 30);
+    private static MatchmakingJournal journal;
+    // Finished games are accepted into this journal and applied to the database in batches behind it
+    private static final boolean WRITE_BEHIND_RESULTS = Boolean.parseBoolean(
+            System.getProperty("gameServerJMS.writeBehindResults", "true"));
+    private static final String RESULT_JOURNAL_FILE = System.getProperty("gameServerJMS.resultJournalFile",
+            INSTANCE_ID == null ? "game-results.dat" : "game-results-" + INSTANCE_ID + ".dat");
+    private static final int RESULT_JOURNAL_MB = Integer.getInteger("gameServerJMS.resultJournalMB", 64);
+    private static final int RESULT_BATCH_SIZE = Integer.getInteger("gameServerJMS.resultBatchSize", 500);
+    private static final long RESULT_RETRY_MILLIS = 1000;
+    // Failed attempts after which a batch is applied one record at a time
+    private static final int RESULT_BATCH_ATTEMPTS = 3;
+    // Results the database keeps rejecting, one JSON record per line, kept for a manual replay
+    private static final String PARKED_RESULTS_FILE = RESULT_JOURNAL_FILE + ".parked";
+    private static ResultJournal resultJournal;
+
     public static void main(String[] args) throws Exception {
-        ConnectionFactory connectionFactory = new ActiveMQConnectionFactory(BROKER_URL);
-        javax.jms.Connection connection = connectionFactory.createConnection();
+        String brokerUrl = BROKER_URL;
+        if (Arrays.asList(args).contains("--embedded-broker")) {
+            // Single node mode, server traffic skips the TCP hop through the in-VM transport
+            EmbeddedBroker.start();
+            brokerUrl = EmbeddedBroker.VM_URL;
+        }
+
+        ActiveMQConnectionFactory connectionFactory = new ActiveMQConnectionFactory(brokerUrl);
+        // Every notification is a fresh message, so the in-VM transport can skip the defensive copy
+        connectionFactory.setCopyMessageOnSend(false);
+        connection = connectionFactory.createConnection();
         connection.start();
 
-        Session session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        // Shared by the game topic consumers of all session actors
+        actorSession = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
 
-        
-        Destination legacyJoinQueue = session.createQueue("player-join");
-        MessageConsumer legacyConsumer = session.createConsumer(legacyJoinQueue);
+        // Reload the previous process's state before any join, cancel or result can arrive
+        journal = new MatchmakingJournal(STATE_FILE);
+        metrics.setJournal(journal);
+        if (WRITE_BEHIND_RESULTS) {
+            // Open before restoring, a restored game whose deciding move replays journals its result
+            resultJournal = new ResultJournal(RESULT_JOURNAL_FILE, RESULT_JOURNAL_MB * 1024 * 1024);
+        }
+        restoreState();
+        if (WRITE_BEHIND_RESULTS) {
+            // Results journaled but not applied before the restart are picked up by the flusher
+            Thread flusher = new Thread(GameServer::flushResults, "result-flusher");
+            flusher.setDaemon(true);
+            flusher.start();
+        }
+        metrics.startHttpEndpoint(METRICS_PORT);
+        Query.registerMXBeans();
+        gameIdAllocator.start();
+        ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor();
+        timer.scheduleAtFixedRate(journal::snapshot, SNAPSHOT_INTERVAL_SECONDS, SNAPSHOT_INTERVAL_SECONDS, TimeUnit.SECONDS);
+        if (MATCH_TICK_MILLIS > 0) {
+            timer.scheduleAtFixedRate(() -> {
+                Set<Integer> typeIds = new HashSet<>(ratingIndexes.keySet());
+                typeIds.addAll(pendingJoins.keySet());
+                for (Integer typeId : typeIds) {
+                    matchmakingWorkers.execute(typeId, () -> {
+                        runMatchTick(typeId);
+                        publishQueueDepth(typeId);
+                    });
+                }
+            }, MATCH_TICK_MILLIS, MATCH_TICK_MILLIS, TimeUnit.MILLISECONDS);
+        } else {
+            // Waiting players' rating windows widen over time, so pairs are looked for again periodically
+            timer.scheduleAtFixedRate(() -> {
+                for (Integer typeId : ratingIndexes.keySet()) {
+                    matchmakingWorkers.execute(typeId, () -> {
+                        matchWaitingPlayers(typeId);
+                        publishQueueDepth(typeId);
+                    });
+                }
+            }, MATCH_SWEEP_MILLIS, MATCH_SWEEP_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        if (INSTANCE_ID != null) {
+            cluster = new ClusterCoordinator(INSTANCE_ID, connection);
+            cluster.start();
+        }
+
+        // Every destination gets its own session so a slow listener never holds up the others
+        Session legacyJoinSession = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        Destination legacyJoinQueue = legacyJoinSession.createQueue("player-join");
+        MessageConsumer legacyConsumer = legacyJoinSession.createConsumer(legacyJoinQueue);
         legacyConsumer.setMessageListener(message -> {
             try {
                 if (message instanceof TextMessage) {
                     String playerId = ((TextMessage) message).getText();
                     System.out.println("[DEPRECATED] Received join request from player: " + playerId);
-                    handleNewPlayer(session, playerId, 1); 
+                    playerWireVersions.put(playerId, GameWireCodec.JSON_ONLY);
+                    matchmakingWorkers.executeBlocking(1, () -> handleNewPlayerSafely(playerId, 1));
                 }
             } catch (JMSException e) {
                 e.printStackTrace();
             }
         });
 
-        
-        Destination typeJoinQueue = session.createQueue("game-join");
-        MessageConsumer typeConsumer = session.createConsumer(typeJoinQueue);
+        Session joinSession = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        Destination typeJoinQueue = joinSession.createQueue("game-join");
+        MessageConsumer typeConsumer = joinSession.createConsumer(typeJoinQueue);
         typeConsumer.setMessageListener(message -> {
             try {
+                if (cluster != null && cluster.isGroupClose(message)) return;
                 if (message instanceof TextMessage) {
                     String[] parts = ((TextMessage) message).getText().split(":");
                     String playerId = parts[0];
                     int typeId = Integer.parseInt(parts[1]);
+                    // Older clients send only playerId:typeId and can only read JSON
+                    int wireVersion = parts.length > 2 ? Integer.parseInt(parts[2]) : GameWireCodec.JSON_ONLY;
+                    playerWireVersions.put(playerId, wireVersion);
+                    if (cluster != null) {
+                        cluster.onJoin(message, typeId);
+                    }
                     System.out.println("Received game join request from player: " + playerId + " for type_id=" + typeId);
-                    handleNewPlayer(session, playerId, typeId);
+                    matchmakingWorkers.executeBlocking(typeId, () -> handleNewPlayerSafely(playerId, typeId));
                 }
             } catch (Exception e) {
                 e.printStackTrace();
             }
         });
 
-        
-        Destination cancelQueue = session.createQueue("game-cancel");
-        MessageConsumer cancelConsumer = session.createConsumer(cancelQueue);
+        Session cancelSession = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        Destination cancelQueue = cancelSession.createQueue("game-cancel");
+        MessageConsumer cancelConsumer = cancelSession.createConsumer(cancelQueue);
         cancelConsumer.setMessageListener(message -> {
             try {
                 if (message instanceof TextMessage) {
@@ -71,348 +225,1480 @@ public class GameServer {
                     String playerId = parts[0];
                     int typeId = Integer.parseInt(parts[1]);
 
-                    Queue<String> queue = waitingPlayersMap.get(typeId);
-                    if (queue != null && queue.remove(playerId)) {
-                        System.out.println("Player " + playerId + " canceled waiting (type_id=" + typeId + ").");
-                    }
+                    cancelWaiting(playerId, typeId, true);
                 }
             } catch (Exception e) {
                 e.printStackTrace();
             }
         });
-        Destination resultQueue = session.createQueue("game-result");
-        MessageConsumer resultConsumer = session.createConsumer(resultQueue);
+
+        // With write-behind a result message is only acknowledged once it is durable in the result journal
+        Session resultSession = connection.createSession(false,
+                resultJournal != null ? ActiveMQSession.INDIVIDUAL_ACKNOWLEDGE : Session.AUTO_ACKNOWLEDGE);
+        Destination resultQueue = resultSession.createQueue("game-result");
+        MessageConsumer resultConsumer = resultSession.createConsumer(resultQueue);
         resultConsumer.setMessageListener(message -> {
             try {
-                if (!(message instanceof TextMessage)) return;
+                if (!(message instanceof TextMessage)) {
+                    acknowledgeResult(message);
+                    return;
+                }
                 
                 JSONObject result = new JSONObject(((TextMessage) message).getText());
-                String type = result.getString("type");
                 String queueName = result.getString("queue");
                 int gameId = Integer.parseInt(queueName.replace("game-session-", ""));
 
-                try (Connection dbConn = DatabaseManager.getConnection()) {
-                    
-                    dbConn.setAutoCommit(false);
-                    
+                resultWorkers.executeBlocking(gameId, () -> {
                     try {
-                    	if (type.equals("result")) {
-                    	    int winnerId = result.getInt("winnerId");
-                    	    int loserId = getOpponentId(queueName, winnerId);
-                    	    playersInGame.remove(winnerId);
-                    	    playersInGame.remove(loserId);
-                    	    
-                    	    // Get current ratings
-                    	    int winnerRating = getPlayerRating(dbConn, winnerId);
-                    	    int loserRating = getPlayerRating(dbConn, loserId);
-                    	    
-                    	    // Calculate new ratings
-                    	    RatingCalculator.RatingUpdate ratingUpdate = RatingCalculator.calculateRating(winnerRating, loserRating);
-                    	    
-                    	    // Update ratings in database
-                    	    updatePlayerRating(dbConn, winnerId, ratingUpdate.winnerNewRating);
-                    	    updatePlayerRating(dbConn, loserId, ratingUpdate.loserNewRating);
-                    	    
-                    	    // Update stats
-                    	    incrementStat(dbConn, winnerId, "wins");
-                    	    incrementStat(dbConn, loserId, "losses");
-                    	    
-                    	    // Update game record
-                    	    String updateSql = "UPDATE Games SET winner=?, loser=?, end_time=NOW(), stat='finished' WHERE game_id=?";
-                    	    try (PreparedStatement stmt = dbConn.prepareStatement(updateSql)) {
-                    	        stmt.setInt(1, winnerId);
-                    	        stmt.setInt(2, loserId);
-                    	        stmt.setInt(3, gameId);
-                    	        stmt.executeUpdate();
-                    	    }
-                    	    
-                    	    String winnerName = getPlayerUsername(dbConn, winnerId);
-                    	    String loserName = getPlayerUsername(dbConn, loserId);
-                    	    
-                    	    sendGameResultNotification(session, queueName, winnerId, loserId, winnerName, loserName, 
-                    	                            winnerRating, ratingUpdate.winnerNewRating,
-                    	                            loserRating, ratingUpdate.loserNewRating);
-                    	    
-                    	} else if (type.equals("draw")) {
-                    	    // First check if the game is already marked as draw
-                    	    String checkSql = "SELECT draw FROM Games WHERE game_id = ?";
-                    	    boolean alreadyProcessed = false;
-                    	    try (PreparedStatement checkStmt = dbConn.prepareStatement(checkSql)) {
-                    	        checkStmt.setInt(1, gameId);
-                    	        ResultSet rs = checkStmt.executeQuery();
-                    	        if (rs.next() && rs.getBoolean("draw")) {
-                    	            alreadyProcessed = true;
-                    	        }
-                    	    }
-                    	    
-                    	    if (!alreadyProcessed) {
-                    	        // Process the draw only if it hasn't been processed before
-                    	        int playerAId;
-                    	        int playerBId;
-                    	        
-                    	        String getPlayersSql = "SELECT player_a, player_b FROM Games WHERE game_id = ?";
-                    	        try (PreparedStatement getPlayersStmt = dbConn.prepareStatement(getPlayersSql)) {
-                    	            getPlayersStmt.setInt(1, gameId);
-                    	            ResultSet rs = getPlayersStmt.executeQuery();
-                    	            if (rs.next()) {
-                    	                playerAId = rs.getInt("player_a");
-                    	                playerBId = rs.getInt("player_b");
-                    	                
-                    	                playersInGame.remove(playerAId);
-                    	                playersInGame.remove(playerBId);
-                    	            } else {
-                    	                throw new SQLException("Game not found: " + gameId);
-                    	            }
-                    	        }
-                    	        
-                    	        incrementStat(dbConn, playerAId, "draws");
-                    	        incrementStat(dbConn, playerBId, "draws");
-                    	        
-                    	        String updateSql = "UPDATE Games SET draw = TRUE, end_time = NOW(), stat = 'finished' WHERE game_id = ?";
-                    	        try (PreparedStatement ps = dbConn.prepareStatement(updateSql)) {
-                    	            ps.setInt(1, gameId);
-                    	            ps.executeUpdate();
-                    	        }
-                    	    }
-                    	    
-                    	    sendDrawNotification(session, queueName, gameId);
-                    	}
-                            
-                    
-                            
-                    	else if (type.equals("resign")) {
-                            
-                            int loserId = result.getInt("resignedPlayerId");
-                            int winnerId = getOpponentId(queueName, loserId);
-                            int winnerRating = getPlayerRating(dbConn, winnerId);
-                    	    int loserRating = getPlayerRating(dbConn, loserId);
-                    	    
-                    	    playersInGame.remove(winnerId);
-                    	    playersInGame.remove(loserId);
-                    	    
-                    	    // Calculate new ratings
-                    	    RatingCalculator.RatingUpdate ratingUpdate = RatingCalculator.calculateRating(winnerRating, loserRating);
-                    	    
-                    	    // Update ratings in database
-                    	    updatePlayerRating(dbConn, winnerId, ratingUpdate.winnerNewRating);
-                    	    updatePlayerRating(dbConn, loserId, ratingUpdate.loserNewRating);
-                    	    
-                    	    // Update stats
-                    	    incrementStat(dbConn, winnerId, "wins");
-                    	    incrementStat(dbConn, loserId, "losses");
-                    	    
-                            String updateSql = "UPDATE Games SET winner=?, loser=?, end_time=NOW(), stat='finished' WHERE game_id=?";
-                            try (PreparedStatement stmt = dbConn.prepareStatement(updateSql)) {
-                                stmt.setInt(1, winnerId);
-                                stmt.setInt(2, loserId);
-                                stmt.setInt(3, gameId);
-                                stmt.executeUpdate();
-                            }
-                            
-                            String winnerName = getPlayerUsername(dbConn, winnerId);
-                            String loserName = getPlayerUsername(dbConn, loserId);
-                            
-                            sendGameResultNotification(session, queueName, winnerId, loserId, winnerName, loserName, 
-    	                            winnerRating, ratingUpdate.winnerNewRating,
-    	                            loserRating, ratingUpdate.loserNewRating);
+                        // Both clients of a game may post its result, only the first one counts
+                        if (finishedGames.contains(gameId)) {
+                            System.out.println("Dropping repeated result for " + queueName);
+                            return;
+                        }
+                        GameRegistry.ActiveGame game = gameRegistry.get(gameId);
+                        if (game != null) {
+                            game.actor.onResult(result);
+                        } else if (cluster != null && cluster.hasPeers()) {
+                            // The game may run on another instance, whose actor listens on the game topic
+                            NotificationSender sender = workerSender();
+                            sender.sendToTopic(queueName, new JSONObject()
+                                .put("type", "forwardedResult")
+                                .put("result", result)
+                                .toString());
+                            sender.evictTopic(queueName);
+                        } else {
+                            // No other instance could hold the game, commit it from the database rows
+                            processGameResult(workerSender(), result);
                         }
-                        
-                        // Commit transaction if everything succeeded
-                        
-                        dbConn.commit();
-                    } catch (SQLException e) {
-                      dbConn.rollback();
-                      throw e;
+                    } catch (Exception e) {
+                        System.err.println("Failed to process game result: " + e.getMessage());
+                        e.printStackTrace();
                     } finally {
-                      dbConn.setAutoCommit(true);
+                        acknowledgeResult(message);
                     }
-                }
+                });
             } catch (Exception e) {
                 System.err.println("Failed to process game result: " + e.getMessage());
                 e.printStackTrace();
+                acknowledgeResult(message);
             }
         });
         
 
+        Session profileSession = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+        MessageConsumer profileConsumer = profileSession.createConsumer(profileSession.createTopic(PROFILE_TOPIC));
+        profileConsumer.setMessageListener(message -> {
+            try {
+                if (!(message instanceof TextMessage)) return;
+                JSONObject change = new JSONObject(((TextMessage) message).getText());
+                // Ratings this instance committed are already written through
+                if (INSTANCE_ID != null && INSTANCE_ID.equals(change.optString("origin", null))) return;
+                for (int i = 0; i < change.getJSONArray("playerIds").length(); i++) {
+                    playerProfiles.invalidate(change.getJSONArray("playerIds").getInt(i));
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                if (cluster != null) {
+                    // Stop taking joins, then pass the waiting players on to the remaining instances
+                    typeConsumer.close();
+                    cancelConsumer.close();
+                    for (Integer typeId : waitingPlayersMap.keySet()) {
+                        handOver(typeId);
+                    }
+                    cluster.leave();
+                }
+                matchmakingWorkers.shutdown(5, TimeUnit.SECONDS);
+                journal.close();
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }));
+
         System.out.println("Game server is running...");
     }
-    
-    private static int getPlayerRating(Connection dbConn, int playerId) throws SQLException {
-        String sql = "SELECT current_rating FROM Players WHERE player_id = ?";
-        try (PreparedStatement stmt = dbConn.prepareStatement(sql)) {
-            stmt.setInt(1, playerId);
-            ResultSet rs = stmt.executeQuery();
-            return rs.next() ? rs.getInt("current_rating") : 1000; // Default rating if not found
+
+    /**
+     * Returns the notification sender owned by the current worker thread, creating it on first use
+     */
+    private static NotificationSender workerSender() throws JMSException {
+        NotificationSender sender = workerSenders.get();
+        if (sender == null) {
+            sender = new NotificationSender(connection.createSession(false, Session.AUTO_ACKNOWLEDGE));
+            workerSenders.set(sender);
         }
+        return sender;
     }
 
-    private static void updatePlayerRating(Connection dbConn, int playerId, int newRating) throws SQLException {
-        String sql = "UPDATE Players SET current_rating = ? WHERE player_id = ?";
-        try (PreparedStatement stmt = dbConn.prepareStatement(sql)) {
-            stmt.setInt(1, newRating);
-            stmt.setInt(2, playerId);
-            stmt.executeUpdate();
+    /**
+     * Puts the waiting players and running games journaled by the previous process
+     * back in place, runs before any consumer is attached
+     */
+    private static void restoreState() throws JMSException {
+        journal.getWaiting().forEach((typeId, players) -> {
+            WaitingQueue queue = waitingPlayersMap.computeIfAbsent(typeId, k -> new WaitingQueue());
+            RatingIndex index = ratingIndexes.computeIfAbsent(typeId, k -> new RatingIndex());
+            players.forEach((playerId, record) -> {
+                queue.add(Integer.parseInt(playerId), record.enqueuedAt);
+                index.add(playerId, record.rating, record.enqueuedAt);
+                playerWireVersions.put(playerId, record.wireVersion);
+                noteWaiting(playerId, typeId);
+                scheduleQueueExpiry(typeId, playerId, record.enqueuedAt);
+            });
+        });
+
+        for (MatchmakingJournal.GameRecord record : journal.getGames()) {
+            GameSessionActor actor = new GameSessionActor(record.gameId, record.typeId, record.playerA, record.playerB);
+            actor.restore(record.moves);
+            // The deciding move was journaled but its result never committed, restore just retried it.
+            // If that failed again the game stays registered while the commit is retried
+            if (actor.isFinished()) continue;
+
+            actor.subscribe(actorSession, resultWorkers);
+            GameRegistry.ActiveGame game = new GameRegistry.ActiveGame(
+                    record.gameId, record.playerA, record.playerB, record.typeId, record.startTime, actor);
+            gameRegistry.register(game);
+            game.timeout = scheduleGameExpiry(record.gameId, GAME_IDLE_TIMEOUT_MILLIS);
+            playersInGame.add(record.playerA);
+            playersInGame.add(record.playerB);
         }
     }
 
-    private static void incrementStat(Connection dbConn, int playerId, String statColumn) throws SQLException {
-        String sql = "UPDATE Stats SET " + statColumn + " = " + statColumn + " + 1 WHERE player_id = ?";
-        try (PreparedStatement stmt = dbConn.prepareStatement(sql)) {
-            stmt.setInt(1, playerId);
-            stmt.executeUpdate();
+    /**
+     * Removes a player from a waiting queue, a cancel for a player queued on another
+     * instance is passed on when forward is set
+     */
+    static void cancelWaiting(String playerId, int typeId, boolean forward) {
+        matchmakingWorkers.execute(typeId, () -> {
+            if (removeWaiting(typeId, playerId)) {
+                leftQueue(playerId, typeId);
+                metrics.forType(typeId).canceled();
+                System.out.println("Player " + playerId + " canceled waiting (type_id=" + typeId + ").");
+                publishQueueDepth(typeId);
+            } else if (forward && cluster != null) {
+                try {
+                    cluster.forwardCancel(playerId, typeId);
+                } catch (JMSException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
+
+    /**
+     * Takes a player out of a type's pending joins or waiting queue, runs on the type's
+     * matchmaking partition
+     */
+    private static boolean removeWaiting(int typeId, String playerId) {
+        WaitingQueue queue = waitingPlayersMap.get(typeId);
+        Set<String> pending = pendingJoins.get(typeId);
+        if (pending != null && pending.remove(playerId)) return true;
+        if (queue == null || !queue.remove(Integer.parseInt(playerId))) return false;
+
+        ratingIndexes.get(typeId).remove(playerId);
+        waitingUsernames.remove(Integer.parseInt(playerId));
+        journal.dequeued(typeId, playerId);
+        return true;
+    }
+
+    private static void noteWaiting(String playerId, int typeId) {
+        waitingTypes.compute(playerId, (id, types) -> {
+            if (types == null) types = new HashSet<>();
+            types.add(typeId);
+            return types;
+        });
+    }
+
+    /**
+     * Forgets that a player waits for a type, returns whether the player still waits
+     * for another one
+     */
+    private static boolean forgetWaiting(String playerId, int typeId) {
+        return waitingTypes.computeIfPresent(playerId, (id, types) -> {
+            types.remove(typeId);
+            return types.isEmpty() ? null : types;
+        }) != null;
+    }
+
+    /**
+     * Called when a player stops waiting for a type without a match, the wire version
+     * is kept while the player still waits for another type. Returns the wire version.
+     */
+    private static int leftQueue(String playerId, int typeId) {
+        Integer wireVersion = forgetWaiting(playerId, typeId)
+                ? playerWireVersions.get(playerId)
+                : playerWireVersions.remove(playerId);
+        return wireVersion != null ? wireVersion : GameWireCodec.JSON_ONLY;
+    }
+
+    /**
+     * Takes a player who just got a game out of the queues of every other type the
+     * player was waiting for. Runs on those types' partitions, a match there that gets
+     * in first fails its claim and drops the player anyway.
+     */
+    private static void withdrawOtherEntries(String playerId, int typeId) {
+        Set<Integer> types = waitingTypes.remove(playerId);
+        if (types == null) return;
+        for (int otherTypeId : types) {
+            if (otherTypeId == typeId) continue;
+            matchmakingWorkers.execute(otherTypeId, () -> {
+                if (removeWaiting(otherTypeId, playerId)) {
+                    System.out.println("Player " + playerId + " matched for type_id=" + typeId
+                            + ", left the queue of type_id=" + otherTypeId + ".");
+                }
+            });
         }
     }
 
+    /**
+     * Re-sends every player waiting for a type to game-join, called when another
+     * instance took the type over
+     */
+    static void handOver(int typeId) {
+        matchmakingWorkers.execute(typeId, () -> {
+            Set<String> pending = pendingJoins.remove(typeId);
+            if (pending != null) {
+                for (String playerId : pending) {
+                    int wireVersion = leftQueue(playerId, typeId);
+                    try {
+                        cluster.resendJoin(playerId, typeId, wireVersion);
+                    } catch (JMSException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+            WaitingQueue queue = waitingPlayersMap.get(typeId);
+            if (queue == null) return;
+            while (!queue.isEmpty()) {
+                String playerId = String.valueOf(queue.poll());
+                ratingIndexes.get(typeId).remove(playerId);
+                waitingUsernames.remove(Integer.parseInt(playerId));
+                journal.dequeued(typeId, playerId);
+                int wireVersion = leftQueue(playerId, typeId);
+                try {
+                    cluster.resendJoin(playerId, typeId, wireVersion);
+                } catch (JMSException e) {
+                    e.printStackTrace();
+                }
+            }
+        });
+    }
 
-    private static void sendGameResultNotification(Session session, String queueName, 
-            int winnerId, int loserId, String winnerName, String loserName,
-            int winnerOldRating, int winnerNewRating,
-            int loserOldRating, int loserNewRating) throws JMSException {
-        Destination gameTopic = session.createTopic(queueName);
-        MessageProducer producer = session.createProducer(gameTopic);
+    /**
+     * Journals a move a session actor accepted
+     */
+    static void recordMove(int gameId, int playerId, int value) {
+        journal.gameMove(gameId, playerId, value);
+    }
+
+    private static void handleNewPlayerSafely(String playerId, int typeId) {
         try {
-            JSONObject notification = new JSONObject()
-                .put("type", "result")
-                .put("queue", queueName)
-                .put("winnerId", winnerId)
-                .put("loserId", loserId)
-                .put("winnerName", winnerName)
-                .put("loserName", loserName)
-                .put("winnerOldRating", winnerOldRating)
-                .put("winnerNewRating", winnerNewRating)
-                .put("loserOldRating", loserOldRating)
-                .put("loserNewRating", loserNewRating);
-            
-            producer.send(session.createTextMessage(notification.toString()));
-        } finally {
-            producer.close();
+            handleNewPlayer(workerSender(), playerId, typeId);
+        } catch (Exception e) {
+            e.printStackTrace();
         }
+        publishQueueDepth(typeId);
+    }
+
+    /**
+     * Hands the number of waiting players of a type, joins not paired by a tick yet
+     * included, to the metrics. Runs on the type's matchmaking partition, the only
+     * thread that may read the queue; the periodic match pass keeps it current.
+     */
+    private static void publishQueueDepth(int typeId) {
+        WaitingQueue queue = waitingPlayersMap.get(typeId);
+        Set<String> pending = pendingJoins.get(typeId);
+        int depth = (queue == null ? 0 : queue.size()) + (pending == null ? 0 : pending.size());
+        metrics.forType(typeId).setQueueDepth(depth);
     }
 
-    private static void sendDrawNotification(Session session, String queueName, int gameId) throws JMSException {
-        Destination gameTopic = session.createTopic(queueName);
-        MessageProducer producer = session.createProducer(gameTopic);
+    /**
+     * Commits the outcome of a game once its session actor has finished it. Returns false
+     * if that failed, the actor keeps the outcome and it is retried on the game's result
+     * partition every RESULT_RETRY_MILLIS until it goes through.
+     */
+    static boolean commitResult(GameSessionActor actor, JSONObject result) {
         try {
-            JSONObject notification = new JSONObject()
-                .put("type", "draw")
-                .put("queue", queueName)
-                .put("gameId", gameId)
-                .put("isDraw", true);
+            processGameResult(workerSender(), result);
+            return true;
+        } catch (Exception e) {
+            System.err.println("Failed to process game result, retrying: " + e.getMessage());
+            e.printStackTrace();
+            int gameId = actor.getGameId();
+            reaper.schedule(() -> resultWorkers.execute(gameId, actor::retryResult),
+                    RESULT_RETRY_MILLIS, TimeUnit.MILLISECONDS);
+            return false;
+        }
+    }
+
+    /**
+     * Acknowledges a game-result message once whatever it led to is durable in the result
+     * journal. Messages that were dropped or forwarded go out with the next force.
+     */
+    private static void acknowledgeResult(Message message) {
+        if (resultJournal == null) return;
+        resultJournal.whenDurable().thenRun(() -> {
+            try {
+                message.acknowledge();
+            } catch (JMSException e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    /**
+     * Applies a result, draw or resignation posted to game-result in a single transaction,
+     * or hands it to the result journal when results are written behind
+     */
+    private static void processGameResult(NotificationSender sender, JSONObject result) throws Exception {
+        if (resultJournal != null) {
+            journalResult(result);
+            return;
+        }
+        String type = result.getString("type");
+        String queueName = result.getString("queue");
+        int gameId = Integer.parseInt(queueName.replace("game-session-", ""));
+
+        try (Connection dbConn = DatabaseManager.getConnection()) {
             
-            producer.send(session.createTextMessage(notification.toString()));
-        } finally {
-            producer.close();
+            dbConn.setAutoCommit(false);
+            
+            Map<Integer, Integer> newRatings = new HashMap<>();
+            try {
+                if (type.equals("result")) {
+                    // Battleship results name the loser, the other games the winner
+                    int winnerId;
+                    int loserId;
+                    if (result.has("winnerId")) {
+                        winnerId = result.getInt("winnerId");
+                        loserId = getOpponentId(dbConn, gameId, winnerId);
+                    } else {
+                        loserId = result.getInt("loserId");
+                        winnerId = getOpponentId(dbConn, gameId, loserId);
+                    }
+                    playersInGame.remove(winnerId);
+                    playersInGame.remove(loserId);
+                    commitWin(sender, dbConn, queueName, gameId, winnerId, loserId, newRatings);
+
+                } else if (type.equals("draw")) {
+                    GameRegistry.ActiveGame game = gameRegistry.get(gameId);
+                    if (game != null) {
+                        playersInGame.remove(game.playerA);
+                        playersInGame.remove(game.playerB);
+                    }
+
+                    try (PreparedStatement stmt = Query.APPLY_DRAW.prepare(dbConn);
+                         PreparedStatement typeStmt = Query.ADD_TYPE_DRAW.prepare(dbConn)) {
+                        stmt.setInt(1, gameId);
+                        if (stmt.executeUpdate() > 0) {
+                            typeStmt.setInt(1, gameId);
+                            typeStmt.executeUpdate();
+                            sendDrawNotification(sender, queueName, gameId);
+                        }
+                    }
+
+                } else if (type.equals("resign")) {
+                    int loserId = result.getInt("resignedPlayerId");
+                    int winnerId = getOpponentId(dbConn, gameId, loserId);
+                    playersInGame.remove(winnerId);
+                    playersInGame.remove(loserId);
+                    commitWin(sender, dbConn, queueName, gameId, winnerId, loserId, newRatings);
+                }
+                
+                // Commit transaction if everything succeeded
+                
+                dbConn.commit();
+                finishedGames.add(gameId);
+                ratingsCommitted(newRatings);
+                
+                GameRegistry.ActiveGame finishedGame = gameRegistry.remove(gameId);
+                if (finishedGame != null) {
+                    finishedGame.status = "finished";
+                    if (finishedGame.timeout != null) {
+                        finishedGame.timeout.cancel();
+                    }
+                }
+                journal.gameEnded(gameId);
+            } catch (SQLException e) {
+              dbConn.rollback();
+              throw e;
+            } finally {
+              dbConn.setAutoCommit(true);
+            }
+        }
+    }
+    
+    /**
+     * Write-behind counterpart of the transaction above. Resolves both players, appends the
+     * outcome to the result journal and ends the game right away, the flusher applies it
+     * to the database later. A player or game type this process does not know is stored
+     * as -1 and looked up in the game row by the flusher.
+     */
+    private static void journalResult(JSONObject result) throws InterruptedException {
+        String type = result.getString("type");
+        String queueName = result.getString("queue");
+        int gameId = Integer.parseInt(queueName.replace("game-session-", ""));
+
+        GameRegistry.ActiveGame game = gameRegistry.get(gameId);
+        JSONObject record = new JSONObject()
+            .put("queue", queueName)
+            .put("gameId", gameId)
+            .put("typeId", game != null ? game.typeId : -1);
+        int playerA;
+        int playerB;
+        if (type.equals("result") && !result.has("winnerId")) {
+            // Battleship results name the loser
+            playerB = result.getInt("loserId");
+            playerA = gameRegistry.opponentOf(gameId, playerB);
+            record.put("type", "result").put("winnerId", playerA).put("loserId", playerB);
+        } else if (type.equals("result")) {
+            playerA = result.getInt("winnerId");
+            playerB = gameRegistry.opponentOf(gameId, playerA);
+            record.put("type", "result").put("winnerId", playerA).put("loserId", playerB);
+        } else if (type.equals("resign")) {
+            playerB = result.getInt("resignedPlayerId");
+            playerA = gameRegistry.opponentOf(gameId, playerB);
+            record.put("type", "result").put("winnerId", playerA).put("loserId", playerB);
+        } else if (type.equals("draw")) {
+            playerA = game != null ? game.playerA : -1;
+            playerB = game != null ? game.playerB : -1;
+            record.put("type", "draw").put("playerA", playerA).put("playerB", playerB);
+        } else {
+            return;
+        }
+        resultJournal.append(record.toString());
+        finishedGames.add(gameId);
+
+        playersInGame.remove(playerA);
+        playersInGame.remove(playerB);
+        GameRegistry.ActiveGame finishedGame = gameRegistry.remove(gameId);
+        if (finishedGame != null) {
+            finishedGame.status = "finished";
+            if (finishedGame.timeout != null) {
+                finishedGame.timeout.cancel();
+            }
+        }
+        journal.gameEnded(gameId);
+    }
+
+    /**
+     * Runs on the result-flusher thread, applies journaled results in batches of up to
+     * RESULT_BATCH_SIZE. Results arriving while a batch is written wait for the next one,
+     * so batches grow with the load. A failed batch is retried as a whole and only marked
+     * applied after its commit. After RESULT_BATCH_ATTEMPTS failures it is applied one
+     * record at a time, so one bad record cannot hold up every result behind it.
+     */
+    private static void flushResults() {
+        List<String> batch = new ArrayList<>();
+        long end = 0;
+        int failures = 0;
+        while (true) {
+            try {
+                if (batch.isEmpty()) {
+                    end = resultJournal.readDurable(RESULT_BATCH_SIZE, batch, 1000);
+                    if (batch.isEmpty()) continue;
+                }
+                if (failures < RESULT_BATCH_ATTEMPTS) {
+                    notifyResults(applyResults(batch));
+                    batch.clear();
+                } else {
+                    applyOneByOne(batch);
+                }
+                resultJournal.markApplied(end);
+                failures = 0;
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                failures++;
+                System.err.println("Failed to apply " + batch.size() + " game results (attempt " + failures
+                        + "), retrying: " + e.getMessage());
+                e.printStackTrace();
+                try {
+                    Thread.sleep(RESULT_RETRY_MILLIS);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Applies the records of a batch that kept failing one transaction each, removing
+     * them from the batch as they are done. A record the database rejects is parked in
+     * PARKED_RESULTS_FILE and skipped. Connection failures are thrown, the rest of the
+     * batch is retried once the database is back.
+     */
+    private static void applyOneByOne(List<String> batch) throws SQLException, IOException {
+        Iterator<String> it = batch.iterator();
+        while (it.hasNext()) {
+            String line = it.next();
+            try {
+                notifyResults(applyResults(List.of(line)));
+            } catch (SQLException e) {
+                if (isTransient(e)) throw e;
+                parkResult(line, e);
+            } catch (RuntimeException e) {
+                parkResult(line, e);
+            }
+            it.remove();
+        }
+    }
+
+    private static boolean isTransient(SQLException e) {
+        String state = e.getSQLState();
+        return e instanceof SQLTransientException || e instanceof SQLRecoverableException
+                || (state != null && (state.startsWith("08") || state.startsWith("40")));
+    }
+
+    private static void parkResult(String line, Exception cause) throws IOException {
+        System.err.println("Parking game result the database rejects in " + PARKED_RESULTS_FILE + ": " + line);
+        cause.printStackTrace();
+        Files.write(Paths.get(PARKED_RESULTS_FILE), (line + System.lineSeparator()).getBytes(StandardCharsets.UTF_8),
+                StandardOpenOption.CREATE, StandardOpenOption.APPEND, StandardOpenOption.SYNC);
+    }
+
+    /**
+     * Sends the notifications of applied records, only after their commit so a failed
+     * send never applies a result twice
+     */
+    private static void notifyResults(List<JSONObject> applied) {
+        for (JSONObject record : applied) {
+            try {
+                String queueName = record.getString("queue");
+                if (!record.optBoolean("applied")) {
+                    continue;
+                } else if (record.getString("type").equals("draw")) {
+                    sendDrawNotification(workerSender(), queueName, record.getInt("gameId"));
+                } else {
+                    sendGameResultNotification(workerSender(), queueName,
+                            record.getInt("winnerId"), record.getInt("loserId"),
+                            record.optString("winnerName", null), record.optString("loserName", null),
+                            record.getInt("winnerOldRating"), record.getInt("winnerNewRating"),
+                            record.getInt("loserOldRating"), record.getInt("loserNewRating"));
+                }
+            } catch (JMSException e) {
+                e.printStackTrace();
+            }
         }
     }
 
+    /**
+     * Applies a batch of journaled results in one transaction: one SELECT ... FOR UPDATE
+     * locks every player of the batch, ratings are worked out in journal order in memory,
+     * then each table gets a single JDBC batch. Only games still active are finished, a
+     * result for a game that already ended leaves ratings and stats alone. The records come
+     * back marked applied and carrying the ratings and names their notifications need.
+     */
+    private static List<JSONObject> applyResults(List<String> batch) throws SQLException {
+        List<JSONObject> records = new ArrayList<>();
+        for (String line : batch) {
+            records.add(new JSONObject(line));
+        }
+
+        try (Connection dbConn = DatabaseManager.getConnection()) {
+            dbConn.setAutoCommit(false);
+            try {
+                resolvePlayers(dbConn, records);
+
+                Set<Integer> playerIds = new TreeSet<>();
+                for (JSONObject record : records) {
+                    boolean draw = record.getString("type").equals("draw");
+                    playerIds.add(record.getInt(draw ? "playerA" : "winnerId"));
+                    playerIds.add(record.getInt(draw ? "playerB" : "loserId"));
+                }
+                playerIds.remove(-1);
+                Map<Integer, Integer> ratings = new HashMap<>();
+                Map<Integer, String> names = new HashMap<>();
+                lockPlayers(dbConn, playerIds, ratings, names);
+
+                // Finish the game rows first, their update counts tell which results still count
+                List<JSONObject> wins = new ArrayList<>();
+                List<JSONObject> draws = new ArrayList<>();
+                try (PreparedStatement winStmt = Query.FINISH_WIN.prepare(dbConn);
+                     PreparedStatement drawStmt = Query.FINISH_DRAW.prepare(dbConn)) {
+                    for (JSONObject record : records) {
+                        int gameId = record.getInt("gameId");
+                        if (record.getString("type").equals("draw")) {
+                            drawStmt.setInt(1, gameId);
+                            drawStmt.addBatch();
+                            draws.add(record);
+                        } else if (record.getInt("winnerId") == -1 || record.getInt("loserId") == -1) {
+                            System.err.println("Dropping result of game " + gameId + ", its players are unknown");
+                        } else {
+                            winStmt.setInt(1, record.getInt("winnerId"));
+                            winStmt.setInt(2, record.getInt("loserId"));
+                            winStmt.setInt(3, gameId);
+                            winStmt.addBatch();
+                            wins.add(record);
+                        }
+                    }
+                    int[] winCounts = winStmt.executeBatch();
+                    int[] drawCounts = drawStmt.executeBatch();
+                    for (int i = 0; i < winCounts.length; i++) {
+                        wins.get(i).put("applied", winCounts[i] != 0);
+                    }
+                    for (int i = 0; i < drawCounts.length; i++) {
+                        draws.get(i).put("applied", drawCounts[i] != 0);
+                    }
+                }
+
+                // wins, losses and draws gained per player, and per player and game type, in this batch
+                Map<Integer, int[]> stats = new HashMap<>();
+                Map<Long, int[]> typeStats = new HashMap<>();
+                Set<Integer> rated = new HashSet<>();
+                for (JSONObject record : records) {
+                    if (!record.optBoolean("applied")) {
+                        if (record.has("applied")) {
+                            System.out.println("Game " + record.getInt("gameId") + " is no longer active, ignoring its result");
+                        }
+                        continue;
+                    }
+                    int typeId = record.optInt("typeId", -1);
+                    if (record.getString("type").equals("draw")) {
+                        for (String key : new String[] { "playerA", "playerB" }) {
+                            if (record.getInt(key) != -1) {
+                                stats.computeIfAbsent(record.getInt(key), k -> new int[3])[2]++;
+                                addTypeStat(typeStats, record.getInt(key), typeId, 2);
+                            }
+                        }
+                        continue;
+                    }
+
+                    int winnerId = record.getInt("winnerId");
+                    int loserId = record.getInt("loserId");
+                    int winnerRating = ratings.getOrDefault(winnerId, 1000); // Default rating if not found
+                    int loserRating = ratings.getOrDefault(loserId, 1000);
+                    RatingCalculator.RatingUpdate ratingUpdate = RatingCalculator.calculateRating(winnerRating, loserRating);
+                    ratings.put(winnerId, ratingUpdate.winnerNewRating);
+                    ratings.put(loserId, ratingUpdate.loserNewRating);
+                    rated.add(winnerId);
+                    rated.add(loserId);
+                    stats.computeIfAbsent(winnerId, k -> new int[3])[0]++;
+                    stats.computeIfAbsent(loserId, k -> new int[3])[1]++;
+                    addTypeStat(typeStats, winnerId, typeId, 0);
+                    addTypeStat(typeStats, loserId, typeId, 1);
+                    record.put("winnerName", names.get(winnerId))
+                        .put("loserName", names.get(loserId))
+                        .put("winnerOldRating", winnerRating)
+                        .put("winnerNewRating", ratingUpdate.winnerNewRating)
+                        .put("loserOldRating", loserRating)
+                        .put("loserNewRating", ratingUpdate.loserNewRating);
+                }
+
+                try (PreparedStatement ratingStmt = Query.SET_RATING.prepare(dbConn);
+                     PreparedStatement statsStmt = Query.ADD_STATS.prepare(dbConn)) {
+                    for (Integer playerId : rated) {
+                        ratingStmt.setInt(1, ratings.get(playerId));
+                        ratingStmt.setInt(2, playerId);
+                        ratingStmt.addBatch();
+                    }
+                    for (Map.Entry<Integer, int[]> entry : stats.entrySet()) {
+                        statsStmt.setInt(1, entry.getValue()[0]);
+                        statsStmt.setInt(2, entry.getValue()[1]);
+                        statsStmt.setInt(3, entry.getValue()[2]);
+                        statsStmt.setInt(4, entry.getKey());
+                        statsStmt.addBatch();
+                    }
+                    ratingStmt.executeBatch();
+                    statsStmt.executeBatch();
+                }
+                if (!typeStats.isEmpty()) {
+                    try (PreparedStatement stmt = Query.ADD_TYPE_STATS.prepare(dbConn, typeStats.size())) {
+                        int index = 1;
+                        for (Map.Entry<Long, int[]> entry : typeStats.entrySet()) {
+                            stmt.setInt(index++, (int) (entry.getKey() >>> 32));
+                            stmt.setInt(index++, entry.getKey().intValue());
+                            stmt.setInt(index++, entry.getValue()[0]);
+                            stmt.setInt(index++, entry.getValue()[1]);
+                            stmt.setInt(index++, entry.getValue()[2]);
+                        }
+                        stmt.executeUpdate();
+                    }
+                }
+
+                dbConn.commit();
+
+                Map<Integer, Integer> newRatings = new HashMap<>();
+                for (Integer playerId : rated) {
+                    newRatings.put(playerId, ratings.get(playerId));
+                }
+                ratingsCommitted(newRatings);
+            } catch (SQLException e) {
+                dbConn.rollback();
+                throw e;
+            } finally {
+                dbConn.setAutoCommit(true);
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Counts a win (0), loss (1) or draw (2) for the player under the game type, results
+     * whose type could not be resolved only count towards the overall stats
+     */
+    private static void addTypeStat(Map<Long, int[]> typeStats, int playerId, int typeId, int outcome) {
+        if (typeId == -1) return;
+        typeStats.computeIfAbsent(((long) playerId << 32) | typeId, k -> new int[3])[outcome]++;
+    }
+
+    /**
+     * Fills in players and game types stored as -1 from the game rows, with one IN query
+     * for the whole batch. Records journaled before the type was stored have none at all.
+     */
+    private static void resolvePlayers(Connection dbConn, List<JSONObject> records) throws SQLException {
+        Map<Integer, JSONObject> unresolved = new HashMap<>();
+        for (JSONObject record : records) {
+            boolean draw = record.getString("type").equals("draw");
+            if (record.getInt(draw ? "playerA" : "winnerId") == -1 || record.getInt(draw ? "playerB" : "loserId") == -1
+                    || record.optInt("typeId", -1) == -1) {
+                unresolved.put(record.getInt("gameId"), record);
+            }
+        }
+        if (unresolved.isEmpty()) return;
+
+        List<Integer> gameIds = new ArrayList<>(unresolved.keySet());
+        try (PreparedStatement stmt = Query.GAMES_PLAYERS.prepare(dbConn, gameIds.size())) {
+            for (int i = 0; i < gameIds.size(); i++) {
+                stmt.setInt(i + 1, gameIds.get(i));
+            }
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()) {
+                int a = rs.getInt("player_a"), b = rs.getInt("player_b");
+                // Every record of the game, a duplicate result may share its id
+                for (JSONObject record : records) {
+                    if (record.getInt("gameId") != rs.getInt("game_id")) continue;
+                    record.put("typeId", rs.getInt("type_id"));
+                    if (record.getString("type").equals("draw")) {
+                        record.put("playerA", a).put("playerB", b);
+                    } else if (record.getInt("loserId") == -1) {
+                        record.put("loserId", record.getInt("winnerId") == a ? b : a);
+                    } else if (record.getInt("winnerId") == -1) {
+                        record.put("winnerId", record.getInt("loserId") == a ? b : a);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads and locks the ratings and names of the given players with one IN query
+     */
+    private static void lockPlayers(Connection dbConn, Set<Integer> playerIds,
+                                    Map<Integer, Integer> ratings, Map<Integer, String> names) throws SQLException {
+        if (playerIds.isEmpty()) return;
+        try (PreparedStatement stmt = Query.LOCK_PLAYERS.prepare(dbConn, playerIds.size())) {
+            int index = 1;
+            for (Integer playerId : playerIds) {
+                stmt.setInt(index++, playerId);
+            }
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()) {
+                ratings.put(rs.getInt("player_id"), rs.getInt("current_rating"));
+                names.put(rs.getInt("player_id"), rs.getString("username"));
+            }
+        }
+    }
+
+    /**
+     * Writes ratings that were just committed through to the profile cache, with several
+     * instances the others are told to drop their copies
+     */
+    private static void ratingsCommitted(Map<Integer, Integer> newRatings) {
+        for (Map.Entry<Integer, Integer> entry : newRatings.entrySet()) {
+            playerProfiles.updateRating(entry.getKey(), entry.getValue());
+        }
+        if (INSTANCE_ID != null && !newRatings.isEmpty()) {
+            publishProfileChanges(newRatings.keySet());
+        }
+    }
+
+    private static void publishProfileChanges(Collection<Integer> playerIds) {
+        try {
+            workerSender().sendToTopic(PROFILE_TOPIC, new JSONObject()
+                .put("origin", INSTANCE_ID)
+                .put("playerIds", playerIds)
+                .toString());
+        } catch (JMSException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static int getPlayerRating(int playerId) throws SQLException {
+        PlayerProfileCache.Profile profile = playerProfiles.get(playerId);
+        return profile != null ? profile.rating : 1000; // Default rating if not found
+    }
+
+    /**
+     * Applies a win in three round trips: one SELECT ... FOR UPDATE reads and locks both
+     * players and the game row, one multi-table UPDATE writes both ratings, both stats
+     * and the game row, one upsert counts the game in both players' stats_by_type rows.
+     * Nothing is written unless the game is still active, so a repeated result never
+     * moves ratings twice. The new ratings are put into newRatings.
+     */
+    private static void commitWin(NotificationSender sender, Connection dbConn, String queueName, int gameId,
+                                  int winnerId, int loserId, Map<Integer, Integer> newRatings) throws SQLException, JMSException {
+        int winnerRating = 1000; // Default rating if not found
+        int loserRating = 1000;
+        String winnerName = null;
+        String loserName = null;
+        int typeId = -1;
+        try (PreparedStatement stmt = Query.LOCK_WIN.prepare(dbConn)) {
+            stmt.setInt(1, gameId);
+            stmt.setInt(2, winnerId);
+            stmt.setInt(3, loserId);
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()) {
+                typeId = rs.getInt("type_id");
+                if (rs.getInt("player_id") == winnerId) {
+                    winnerRating = rs.getInt("current_rating");
+                    winnerName = rs.getString("username");
+                } else {
+                    loserRating = rs.getInt("current_rating");
+                    loserName = rs.getString("username");
+                }
+            }
+        }
+
+        if (winnerName == null && loserName == null) {
+            // No row joined, the game was already finished or abandoned
+            System.out.println("Game " + gameId + " is no longer active, ignoring its result");
+            return;
+        }
+
+        RatingCalculator.RatingUpdate ratingUpdate = RatingCalculator.calculateRating(winnerRating, loserRating);
+
+        try (PreparedStatement stmt = Query.APPLY_WIN.prepare(dbConn)) {
+            stmt.setInt(1, gameId);
+            stmt.setInt(2, winnerId);
+            stmt.setInt(3, ratingUpdate.winnerNewRating);
+            stmt.setInt(4, ratingUpdate.loserNewRating);
+            stmt.setInt(5, winnerId);
+            stmt.setInt(6, loserId);
+            stmt.setInt(7, winnerId);
+            stmt.setInt(8, loserId);
+            stmt.setInt(9, winnerId);
+            stmt.setInt(10, loserId);
+            stmt.executeUpdate();
+        }
+        try (PreparedStatement stmt = Query.ADD_TYPE_STATS.prepare(dbConn, 2)) {
+            stmt.setInt(1, winnerId);
+            stmt.setInt(2, typeId);
+            stmt.setInt(3, 1);
+            stmt.setInt(4, 0);
+            stmt.setInt(5, 0);
+            stmt.setInt(6, loserId);
+            stmt.setInt(7, typeId);
+            stmt.setInt(8, 0);
+            stmt.setInt(9, 1);
+            stmt.setInt(10, 0);
+            stmt.executeUpdate();
+        }
+        newRatings.put(winnerId, ratingUpdate.winnerNewRating);
+        newRatings.put(loserId, ratingUpdate.loserNewRating);
+
+        sendGameResultNotification(sender, queueName, winnerId, loserId, winnerName, loserName,
+                winnerRating, ratingUpdate.winnerNewRating,
+                loserRating, ratingUpdate.loserNewRating);
+    }
+
+    private static void sendGameResultNotification(NotificationSender sender, String queueName, 
+            int winnerId, int loserId, String winnerName, String loserName,
+            int winnerOldRating, int winnerNewRating,
+            int loserOldRating, int loserNewRating) throws JMSException {
+        JSONObject notification = new JSONObject()
+            .put("type", "result")
+            .put("queue", queueName)
+            .put("winnerId", winnerId)
+            .put("loserId", loserId)
+            .put("winnerName", winnerName)
+            .put("loserName", loserName)
+            .put("winnerOldRating", winnerOldRating)
+            .put("winnerNewRating", winnerNewRating)
+            .put("loserOldRating", loserOldRating)
+            .put("loserNewRating", loserNewRating);
+        
+        sender.sendToTopic(queueName, notification.toString());
+        // The game is over, nothing else will be published to its topic
+        sender.evictTopic(queueName);
+    }
+
+    private static void sendDrawNotification(NotificationSender sender, String queueName, int gameId) throws JMSException {
+        JSONObject notification = new JSONObject()
+            .put("type", "draw")
+            .put("queue", queueName)
+            .put("gameId", gameId)
+            .put("isDraw", true);
+        
+        sender.sendToTopic(queueName, notification.toString());
+        sender.evictTopic(queueName);
+    }
+
 
    
     
 
     
-    private static void handleNewPlayer(Session session, String playerId, int typeId) throws JMSException {
+    private static void handleNewPlayer(NotificationSender sender, String playerId, int typeId) throws JMSException {
         int playerIdInt = Integer.parseInt(playerId);
+        metrics.forType(typeId).joined();
         
         // Check if player is already in an active game
         if (playersInGame.contains(playerIdInt)) {
             System.out.println("Player " + playerId + " is already in an active game");
-            sendAlreadyInGameMessage(session, playerId);
+            playerWireVersions.remove(playerId);
+            sendAlreadyInGameMessage(sender, playerId);
             return;
         }
         
-        Queue<String> queue = waitingPlayersMap.computeIfAbsent(typeId, k -> new ConcurrentLinkedQueue<>());
+        WaitingQueue queue = waitingPlayersMap.computeIfAbsent(typeId, k -> new WaitingQueue());
+        RatingIndex index = ratingIndexes.computeIfAbsent(typeId, k -> new RatingIndex());
 
-        if (queue.contains(playerId)) {
+        if (queue.contains(playerIdInt)) {
             System.out.println("Player already in queue " + playerId);
-            sendWaitingMessage(session, playerId);
-        } else if (queue.size() >= 1 && !queue.contains(playerId)) {
-            String opponentId = queue.poll();
-            int playerA = Integer.parseInt(opponentId);
-            int playerB = Integer.parseInt(playerId);
-            
-            try (Connection dbConn = DatabaseManager.getConnection()) {
-                String sql = "INSERT INTO Games (player_a, player_b, type_id, stat) VALUES (?, ?, ?, 'active')";
-                try (PreparedStatement stmt = dbConn.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS)) {
-                    stmt.setInt(1, playerA);
-                    stmt.setInt(2, playerB);
-                    stmt.setInt(3, typeId);
-                    stmt.executeUpdate();
-
-                    try (ResultSet rs = stmt.getGeneratedKeys()) {
-                        if (rs.next()) {
-                            int gameId = rs.getInt(1);
-                            String gameQueueName = "game-session-" + gameId;
-
-                            playersInGame.add(playerA);
-                            playersInGame.add(playerB);
-
-                            String playerAUsername = getPlayerUsername(dbConn, playerA);
-                            String playerBUsername = getPlayerUsername(dbConn, playerB);
-
-                            JSONObject msgToPlayerA = new JSONObject()
-                                .put("queue", gameQueueName)
-                                .put("yourTurn", true)
-                                .put("yourUsername", playerAUsername)
-                                .put("opponentUsername", playerBUsername);
-
-                            JSONObject msgToPlayerB = new JSONObject()
-                                .put("queue", gameQueueName)
-                                .put("yourTurn", false)
-                                .put("yourUsername", playerBUsername)
-                                .put("opponentUsername", playerAUsername);
-
-                            sendGameInfo(session, opponentId, msgToPlayerA);
-                            sendGameInfo(session, playerId, msgToPlayerB);
-
-                            System.out.println("Created game: " + gameQueueName);
-                        }
+            sendWaitingMessage(playerId, typeId);
+            return;
+        }
+        noteWaiting(playerId, typeId);
+
+        if (MATCH_TICK_MILLIS > 0) {
+            // Loaded and paired by the next tick together with everyone else who joined
+            pendingJoins.computeIfAbsent(typeId, k -> new LinkedHashSet<>()).add(playerId);
+            return;
+        }
+
+        int rating;
+        try {
+            rating = getPlayerRating(playerIdInt);
+        } catch (SQLException e) {
+            e.printStackTrace();
+            rating = 1000; // Default rating, as for players without one
+        }
+
+        long now = System.currentTimeMillis();
+        String opponentId = index.findOpponent(rating, now);
+        if (opponentId == null) {
+            enqueue(typeId, playerId, rating, now);
+            sendWaitingMessage(playerId, typeId);
+            return;
+        }
+
+        int opponentRating = index.ratingOf(opponentId);
+        long opponentEnqueuedAt = queue.enqueuedAt(Integer.parseInt(opponentId));
+        queue.remove(Integer.parseInt(opponentId));
+        index.remove(opponentId);
+        journal.dequeued(typeId, opponentId);
+
+        int busyId = claimPlayers(Integer.parseInt(opponentId), playerIdInt);
+        if (busyId == playerIdInt) {
+            // A game of another type took the player since the check above
+            forgetWaiting(playerId, typeId);
+            enqueue(typeId, opponentId, opponentRating, opponentEnqueuedAt);
+            System.out.println("Player " + playerId + " is already in an active game");
+            sendAlreadyInGameMessage(sender, playerId);
+            return;
+        }
+        if (busyId != 0) {
+            // The opponent was matched for another type meanwhile, wait for someone else
+            forgetWaiting(opponentId, typeId);
+            enqueue(typeId, playerId, rating, now);
+            sendWaitingMessage(playerId, typeId);
+            return;
+        }
+
+        try {
+            startGame(sender, typeId, opponentId, playerId);
+            metrics.forType(typeId).matched(now - opponentEnqueuedAt, 0);
+        } catch (SQLException e) {
+            e.printStackTrace();
+            enqueue(typeId, opponentId, opponentRating, opponentEnqueuedAt);
+            enqueue(typeId, playerId, rating, now);
+            sendWaitingMessage(playerId, typeId);
+        }
+    }
+
+    /**
+     * Pairs waiting players whose rating windows have widened enough to accept each other,
+     * runs periodically on the type's matchmaking partition
+     */
+    private static void matchWaitingPlayers(int typeId) {
+        RatingIndex index = ratingIndexes.get(typeId);
+        WaitingQueue queue = waitingPlayersMap.get(typeId);
+        if (index == null || queue == null || index.size() < 2) return;
+
+        long now = System.currentTimeMillis();
+        for (RatingIndex.Entry[] pair : index.takeMatchedPairs(now)) {
+            queue.remove(Integer.parseInt(pair[0].playerId));
+            queue.remove(Integer.parseInt(pair[1].playerId));
+            journal.dequeued(typeId, pair[0].playerId);
+            journal.dequeued(typeId, pair[1].playerId);
+            int busyId = claimPlayers(Integer.parseInt(pair[0].playerId), Integer.parseInt(pair[1].playerId));
+            if (busyId != 0) {
+                claimFailed(typeId, pair, busyId);
+                continue;
+            }
+            try {
+                startGame(workerSender(), typeId, pair[0].playerId, pair[1].playerId);
+                metrics.forType(typeId).matched(now - pair[0].enqueuedAt, now - pair[1].enqueuedAt);
+            } catch (Exception e) {
+                e.printStackTrace();
+                requeue(typeId, pair);
+            }
+        }
+    }
+
+    /**
+     * One matchmaking tick for a type: takes the joins gathered since the last tick,
+     * loads them with one query, pairs everyone the rating windows allow and creates
+     * all the games with a single insert
+     */
+    private static void runMatchTick(int typeId) {
+        LinkedHashSet<String> joins = pendingJoins.remove(typeId);
+        RatingIndex index = ratingIndexes.computeIfAbsent(typeId, k -> new RatingIndex());
+        if (joins == null && index.size() < 2) return;
+
+        long now = System.currentTimeMillis();
+        try (Connection dbConn = DatabaseManager.getConnection()) {
+            if (joins != null) {
+                List<Integer> joinIds = new ArrayList<>();
+                for (String playerId : joins) {
+                    joinIds.add(Integer.parseInt(playerId));
+                }
+                Map<Integer, Integer> ratings = new HashMap<>();
+                try {
+                    loadPlayers(dbConn, joinIds, ratings);
+                } catch (SQLException e) {
+                    // Keep the joins for the next tick, ahead of any that came in meanwhile
+                    pendingJoins.merge(typeId, joins, (newer, kept) -> {
+                        kept.addAll(newer);
+                        return kept;
+                    });
+                    throw e;
+                }
+                for (String playerId : joins) {
+                    enqueue(typeId, playerId, ratings.getOrDefault(Integer.parseInt(playerId), 1000), now);
+                }
+            }
+
+            List<RatingIndex.Entry[]> pairs = index.takeMatchedPairs(now);
+            WaitingQueue queue = waitingPlayersMap.get(typeId);
+            List<Integer> missingNames = new ArrayList<>();
+            for (RatingIndex.Entry[] pair : pairs) {
+                for (RatingIndex.Entry player : pair) {
+                    int id = Integer.parseInt(player.playerId);
+                    queue.remove(id);
+                    journal.dequeued(typeId, player.playerId);
+                    if (!waitingUsernames.containsKey(id)) {
+                        missingNames.add(id);
                     }
                 }
+            }
+            // Only players restored from the journal were never loaded
+            try {
+                loadPlayers(dbConn, missingNames, new HashMap<>());
             } catch (SQLException e) {
-                e.printStackTrace();
-                queue.add(opponentId); 
-                sendWaitingMessage(session, playerId);
+                for (RatingIndex.Entry[] pair : pairs) {
+                    requeue(typeId, pair);
+                }
+                throw e;
             }
-        } else {
-            queue.add(playerId);
-            sendWaitingMessage(session, playerId);
+
+            for (Iterator<RatingIndex.Entry[]> it = pairs.iterator(); it.hasNext(); ) {
+                RatingIndex.Entry[] pair = it.next();
+                int busyId = claimPlayers(Integer.parseInt(pair[0].playerId), Integer.parseInt(pair[1].playerId));
+                if (busyId != 0) {
+                    claimFailed(typeId, pair, busyId);
+                    it.remove();
+                }
+            }
+
+            if (!pairs.isEmpty()) {
+                List<Integer> gameIds = insertGames(dbConn, typeId, pairs);
+                NotificationSender sender = workerSender();
+                for (int i = 0; i < pairs.size(); i++) {
+                    int playerA = Integer.parseInt(pairs.get(i)[0].playerId);
+                    int playerB = Integer.parseInt(pairs.get(i)[1].playerId);
+                    announceGame(sender, typeId, gameIds.get(i), playerA, playerB,
+                            waitingUsernames.remove(playerA), waitingUsernames.remove(playerB), false);
+                    metrics.forType(typeId).matched(now - pairs.get(i)[0].enqueuedAt, now - pairs.get(i)[1].enqueuedAt);
+                }
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+            return;
+        }
+
+        // Everyone still waiting after the tick gets told so once
+        if (joins != null) {
+            for (String playerId : joins) {
+                String username = waitingUsernames.get(Integer.parseInt(playerId));
+                if (username != null && waitingPlayersMap.get(typeId).contains(Integer.parseInt(playerId))) {
+                    sendWaitingInfo(playerId, username);
+                }
+            }
+        }
+    }
+
+    /**
+     * Fills waitingUsernames and ratings for the given players, those not in the profile
+     * cache are loaded with one IN query
+     */
+    private static void loadPlayers(Connection dbConn, List<Integer> playerIds, Map<Integer, Integer> ratings) throws SQLException {
+        if (playerIds.isEmpty()) return;
+        Map<Integer, PlayerProfileCache.Profile> profiles = playerProfiles.getAll(dbConn, playerIds);
+        for (Integer playerId : playerIds) {
+            PlayerProfileCache.Profile profile = profiles.get(playerId);
+            if (profile != null) {
+                waitingUsernames.put(playerId, profile.username);
+                ratings.put(playerId, profile.rating);
+            } else {
+                waitingUsernames.putIfAbsent(playerId, "unknown");
+            }
+        }
+    }
+
+    /**
+     * Creates the Games rows of a whole tick with one multi-row insert
+     */
+    private static List<Integer> insertGames(Connection dbConn, int typeId, List<RatingIndex.Entry[]> pairs) throws SQLException {
+        List<Integer> gameIds = new ArrayList<>();
+        try (PreparedStatement stmt = Query.INSERT_ACTIVE_GAMES.prepare(dbConn, pairs.size())) {
+            int parameter = 1;
+            for (RatingIndex.Entry[] pair : pairs) {
+                int gameId = gameIdAllocator.nextId();
+                gameIds.add(gameId);
+                stmt.setInt(parameter++, gameId);
+                stmt.setInt(parameter++, Integer.parseInt(pair[0].playerId));
+                stmt.setInt(parameter++, Integer.parseInt(pair[1].playerId));
+                stmt.setInt(parameter++, typeId);
+            }
+            stmt.executeUpdate();
+        } catch (SQLException e) {
+            // Nobody was matched, put everyone back with their original wait time
+            for (RatingIndex.Entry[] pair : pairs) {
+                releasePlayers(Integer.parseInt(pair[0].playerId), Integer.parseInt(pair[1].playerId));
+                requeue(typeId, pair);
+            }
+            throw e;
+        }
+        return gameIds;
+    }
+
+    /**
+     * Claims both players of a match for a new game in one step. Returns 0 when both were
+     * claimed, otherwise the id of a player that is already in a game, in which case
+     * nobody is claimed. Matchmaking partitions of different types race on the same
+     * players, the atomic add on playersInGame decides which match gets them.
+     */
+    private static int claimPlayers(int playerA, int playerB) {
+        if (playerA == playerB || !playersInGame.add(playerA)) return playerA;
+        if (!playersInGame.add(playerB)) {
+            playersInGame.remove(playerA);
+            return playerB;
+        }
+        return 0;
+    }
+
+    private static void releasePlayers(int playerA, int playerB) {
+        playersInGame.remove(playerA);
+        playersInGame.remove(playerB);
+    }
+
+    /**
+     * Handles a matched pair that could not be claimed: the busy player is already
+     * playing and leaves this queue, the other one goes back with the original wait time
+     */
+    private static void claimFailed(int typeId, RatingIndex.Entry[] pair, int busyId) {
+        for (RatingIndex.Entry player : pair) {
+            if (Integer.parseInt(player.playerId) != busyId) {
+                enqueue(typeId, player.playerId, player.rating, player.enqueuedAt);
+            } else {
+                forgetWaiting(player.playerId, typeId);
+            }
+        }
+    }
+
+    private static void requeue(int typeId, RatingIndex.Entry[] pair) {
+        for (RatingIndex.Entry player : pair) {
+            enqueue(typeId, player.playerId, player.rating, player.enqueuedAt);
+        }
+    }
+
+    private static void enqueue(int typeId, String playerId, int rating, long enqueuedAt) {
+        waitingPlayersMap.computeIfAbsent(typeId, k -> new WaitingQueue()).add(Integer.parseInt(playerId), enqueuedAt);
+        ratingIndexes.computeIfAbsent(typeId, k -> new RatingIndex()).add(playerId, rating, enqueuedAt);
+        journal.enqueued(typeId, playerId, playerWireVersions.getOrDefault(playerId, GameWireCodec.JSON_ONLY), rating, enqueuedAt);
+        scheduleQueueExpiry(typeId, playerId, enqueuedAt);
+    }
+
+    /**
+     * Arms the reaper for a waiting player. The timeout is kept with the player's queue
+     * entry and cancelled when a match claims the player or the player cancels, the
+     * check on expiry only covers a timeout that fired while it was being cancelled.
+     */
+    private static void scheduleQueueExpiry(int typeId, String playerId, long enqueuedAt) {
+        WaitingQueue queue = waitingPlayersMap.get(typeId);
+        // Already waiting since earlier, the timeout armed then still applies
+        if (queue.enqueuedAt(Integer.parseInt(playerId)) != enqueuedAt) return;
+        long delay = enqueuedAt + QUEUE_TIMEOUT_MILLIS - System.currentTimeMillis();
+        HashedWheelTimer.Timeout timeout = reaper.schedule(
+                () -> matchmakingWorkers.execute(typeId, () -> expireWaiting(typeId, playerId, enqueuedAt)),
+                Math.max(0, delay), TimeUnit.MILLISECONDS);
+        queue.setExpiry(Integer.parseInt(playerId), timeout);
+    }
+
+    private static void expireWaiting(int typeId, String playerId, long enqueuedAt) {
+        WaitingQueue queue = waitingPlayersMap.get(typeId);
+        int playerIdInt = Integer.parseInt(playerId);
+        if (queue == null || queue.enqueuedAt(playerIdInt) != enqueuedAt) return;
+
+        queue.remove(playerIdInt);
+        ratingIndexes.get(typeId).remove(playerId);
+        waitingUsernames.remove(playerIdInt);
+        leftQueue(playerId, typeId);
+        journal.dequeued(typeId, playerId);
+        metrics.forType(typeId).expired();
+        System.out.println("Player " + playerId + " waited too long and was removed (type_id=" + typeId + ").");
+    }
+
+    private static HashedWheelTimer.Timeout scheduleGameExpiry(int gameId, long delayMillis) {
+        return reaper.schedule(() -> resultWorkers.execute(gameId, () -> expireGame(gameId)),
+                delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Abandons a game nothing was published for within the idle timeout, runs on the
+     * game's result partition so it cannot race the game's own result
+     */
+    private static void expireGame(int gameId) {
+        GameRegistry.ActiveGame game = gameRegistry.get(gameId);
+        if (game == null) return;
+
+        long idleMillis = System.currentTimeMillis() - game.actor.getLastActivity();
+        // A decided game whose commit is still being retried is not abandoned
+        if (game.actor.hasPendingResult()) {
+            idleMillis = 0;
+        }
+        if (idleMillis < GAME_IDLE_TIMEOUT_MILLIS) {
+            game.timeout = scheduleGameExpiry(gameId, GAME_IDLE_TIMEOUT_MILLIS - idleMillis);
+            return;
+        }
+
+        game.actor.abandon();
+        gameRegistry.remove(gameId);
+        game.status = "abandoned";
+        playersInGame.remove(game.playerA);
+        playersInGame.remove(game.playerB);
+        journal.gameEnded(gameId);
+        finishedGames.add(gameId);
+
+        try (Connection dbConn = DatabaseManager.getConnection();
+             PreparedStatement stmt = Query.ABANDON_GAME.prepare(dbConn)) {
+            stmt.setInt(1, gameId);
+            stmt.executeUpdate();
+        } catch (SQLException e) {
+            e.printStackTrace();
         }
+        System.out.println("Abandoned idle game: game-session-" + gameId);
+    }
+
+    /**
+     * Starts a game under a pre-allocated id and tells both players, the waiting player
+     * moves first. Both players must have been claimed, they are released again when no
+     * game can be created. The Games row is written afterwards, see persistGame.
+     */
+    private static void startGame(NotificationSender sender, int typeId, String opponentId, String playerId) throws SQLException, JMSException {
+        int playerA = Integer.parseInt(opponentId);
+        int playerB = Integer.parseInt(playerId);
+
+        String playerAUsername;
+        String playerBUsername;
+        int gameId;
+        try {
+            playerAUsername = getPlayerUsername(playerA);
+            playerBUsername = getPlayerUsername(playerB);
+            gameId = gameIdAllocator.nextId();
+        } catch (SQLException e) {
+            releasePlayers(playerA, playerB);
+            throw e;
+        }
+        announceGame(sender, typeId, gameId, playerA, playerB, playerAUsername, playerBUsername, true);
+    }
+
+    /**
+     * Inserts the Games row of a game that is already being played. Runs on the game's
+     * result partition, so its result is never applied before the row exists. When the
+     * row cannot be written the game is called off and both clients are told so.
+     */
+    private static void persistGame(int gameId, int playerA, int playerB, int typeId) {
+        for (int attempt = 1; attempt <= PERSIST_ATTEMPTS; attempt++) {
+            try (Connection dbConn = DatabaseManager.getConnection();
+                 PreparedStatement stmt = Query.INSERT_ACTIVE_GAME.prepare(dbConn)) {
+                stmt.setInt(1, gameId);
+                stmt.setInt(2, playerA);
+                stmt.setInt(3, playerB);
+                stmt.setInt(4, typeId);
+                stmt.executeUpdate();
+                return;
+            } catch (SQLException e) {
+                System.err.println("Failed to store game " + gameId + " (attempt " + attempt + "): " + e.getMessage());
+            }
+            try {
+                Thread.sleep(200L * attempt * attempt);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        GameRegistry.ActiveGame game = gameRegistry.remove(gameId);
+        if (game == null) return;
+        game.actor.abandon();
+        game.status = "failed";
+        if (game.timeout != null) {
+            game.timeout.cancel();
+        }
+        playersInGame.remove(playerA);
+        playersInGame.remove(playerB);
+        journal.gameEnded(gameId);
+        finishedGames.add(gameId);
+        System.err.println("Called off game-session-" + gameId + ", its record could not be stored");
+
+        // Tell both clients, a result they post later would be dropped as a repeat
+        String queueName = "game-session-" + gameId;
+        try {
+            NotificationSender sender = workerSender();
+            sender.sendToTopic(queueName, new JSONObject()
+                .put("type", "aborted")
+                .put("queue", queueName)
+                .put("gameId", gameId)
+                .toString());
+            sender.evictTopic(queueName);
+        } catch (JMSException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Starts the session actor of a created game and sends both players their start
+     * message, the players are already claimed
+     */
+    private static void announceGame(NotificationSender sender, int typeId, int gameId, int playerA, int playerB,
+                                     String playerAUsername, String playerBUsername, boolean persist) throws JMSException {
+        String gameQueueName = "game-session-" + gameId;
+        String opponentId = String.valueOf(playerA);
+        String playerId = String.valueOf(playerB);
+
+        int wireVersion = GameWireCodec.negotiate(
+                playerWireVersions.getOrDefault(opponentId, GameWireCodec.JSON_ONLY),
+                playerWireVersions.getOrDefault(playerId, GameWireCodec.JSON_ONLY));
+
+        JSONObject msgToPlayerA = new JSONObject()
+            .put("queue", gameQueueName)
+            .put("yourTurn", true)
+            .put("yourUsername", playerAUsername)
+            .put("opponentUsername", playerBUsername)
+            .put("wireVersion", wireVersion)
+            .put("typeId", typeId);
+
+        // Subscribe before the players are told about the game so no move is missed
+        GameSessionActor actor = new GameSessionActor(gameId, typeId, playerA, playerB);
+        actor.subscribe(actorSession, resultWorkers);
+        GameRegistry.ActiveGame game = new GameRegistry.ActiveGame(
+                gameId, playerA, playerB, typeId, System.currentTimeMillis(), actor);
+        gameRegistry.register(game);
+        journal.gameStarted(game);
+        game.timeout = scheduleGameExpiry(gameId, GAME_IDLE_TIMEOUT_MILLIS);
+        if (persist) {
+            // Queued ahead of anything the players can post for this game
+            resultWorkers.execute(gameId, () -> persistGame(gameId, playerA, playerB, typeId));
+        }
+
+        JSONObject msgToPlayerB = new JSONObject()
+            .put("queue", gameQueueName)
+            .put("yourTurn", false)
+            .put("yourUsername", playerBUsername)
+            .put("opponentUsername", playerAUsername)
+            .put("wireVersion", wireVersion)
+            .put("typeId", typeId);
+
+        sendGameInfo(sender, opponentId, msgToPlayerA);
+        sendGameInfo(sender, playerId, msgToPlayerB);
+        playerWireVersions.remove(opponentId);
+        playerWireVersions.remove(playerId);
+        withdrawOtherEntries(opponentId, typeId);
+        withdrawOtherEntries(playerId, typeId);
+
+        System.out.println("Created game: " + gameQueueName);
     }
 
     
-    private static void sendWaitingMessage(Session session, String playerId) {
-        try (Connection dbConn = DatabaseManager.getConnection()) {
-            String yourUsername = getPlayerUsername(dbConn, Integer.parseInt(playerId));
-            
+    /**
+     * Sends the waiting message right away when the username is cached. Otherwise the
+     * username is looked up off the matchmaking thread and the message is sent from the
+     * type's partition so it is ordered with matches and cancels.
+     */
+    private static void sendWaitingMessage(String playerId, int typeId) {
+        PlayerProfileCache.Profile cached = playerProfiles.getIfPresent(Integer.parseInt(playerId));
+        if (cached != null) {
+            sendWaitingInfo(playerId, cached.username);
+            return;
+        }
+        CompletableFuture.supplyAsync(() -> {
+            try {
+                return getPlayerUsername(Integer.parseInt(playerId));
+            } catch (SQLException e) {
+                throw new CompletionException(e);
+            }
+        }, databaseWorkers).thenAccept(yourUsername -> matchmakingWorkers.execute(typeId, () -> {
+            // The player may have been matched or canceled while the lookup ran
+            WaitingQueue queue = waitingPlayersMap.get(typeId);
+            if (queue == null || !queue.contains(Integer.parseInt(playerId))) return;
+            sendWaitingInfo(playerId, yourUsername);
+        })).exceptionally(e -> {
+            e.printStackTrace();
+            return null;
+        });
+    }
+
+    private static void sendWaitingInfo(String playerId, String yourUsername) {
+        try {
             JSONObject waitingMsg = new JSONObject()
                 .put("queue", "WAITING")
                 .put("yourTurn", false)
                 .put("yourUsername", yourUsername)
                 .put("opponentUsername", "ממתין ליריב...");
 
-            sendGameInfo(session, playerId, waitingMsg);
+            sendGameInfo(workerSender(), playerId, waitingMsg);
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
     
-    private static void sendGameInfo(Session session, String playerId, JSONObject msg) throws JMSException {
-        Destination destination = session.createQueue("player-" + playerId);
-        MessageProducer producer = session.createProducer(destination);
-        producer.send(session.createTextMessage(msg.toString()));
-        producer.close();
+    private static void sendGameInfo(NotificationSender sender, String playerId, JSONObject msg) throws JMSException {
+        sender.sendToPlayer(playerId, msg.toString());
     }
     
 
 
    
-    public static int getOpponentId(String queueName, int playerId) throws SQLException {
-        String gameId = queueName.replace("game-session-", "");
-        String sql = "SELECT player_a, player_b FROM Games WHERE game_id = ?";
-        try (Connection conn = DatabaseManager.getConnection();
-             PreparedStatement stmt = conn.prepareStatement(sql)) {
-            stmt.setInt(1, Integer.parseInt(gameId));
+    /**
+     * Resolves the other player of a game from the registry, only games started
+     * before a restart need the stored record
+     */
+    private static int getOpponentId(Connection dbConn, int gameId, int playerId) throws SQLException {
+        int opponentId = gameRegistry.opponentOf(gameId, playerId);
+        if (opponentId != -1) {
+            return opponentId;
+        }
+
+        try (PreparedStatement stmt = Query.GAME_PLAYERS.prepare(dbConn)) {
+            stmt.setInt(1, gameId);
             ResultSet rs = stmt.executeQuery();
             if (rs.next()) {
                 int a = rs.getInt("player_a"), b = rs.getInt("player_b");
@@ -423,22 +1709,18 @@ public class GameServer {
     }
 
 
-    private static String getPlayerUsername(Connection dbConn, int playerId) throws SQLException {
-        String sql = "SELECT username FROM Players WHERE player_id = ?";
-        try (PreparedStatement stmt = dbConn.prepareStatement(sql)) {
-            stmt.setInt(1, playerId);
-            ResultSet rs = stmt.executeQuery();
-            return rs.next() ? rs.getString("username") : "unknown";
-        }
+    private static String getPlayerUsername(int playerId) throws SQLException {
+        PlayerProfileCache.Profile profile = playerProfiles.get(playerId);
+        return profile != null ? profile.username : "unknown";
     }
 
-    private static void sendAlreadyInGameMessage(Session session, String playerId) {
+    private static void sendAlreadyInGameMessage(NotificationSender sender, String playerId) {
         try {
             JSONObject alreadyInGameMsg = new JSONObject()
                 .put("queue", "ALREADY_IN_GAME")
                 .put("message", "You are already in an active game");
 
-            sendGameInfo(session, playerId, alreadyInGameMsg);
+            sendGameInfo(sender, playerId, alreadyInGameMsg);
         } catch (Exception e) {
             e.printStackTrace();
         }
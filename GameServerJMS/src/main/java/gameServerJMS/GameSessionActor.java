@@ -0,0 +1,295 @@
+package gameServerJMS;
+
+import java.util.List;
+
+import javax.jms.JMSException;
+import javax.jms.MessageConsumer;
+import javax.jms.Session;
+
+import org.json.JSONObject;
+
+/**
+ * Server side owner of one running game session.
+ *
+ * The actor listens on its game-session topic and receives the results posted to
+ * game-result for its game. Both are handled on the game's partition of the result
+ * workers, which is the actor's mailbox, so its state is only touched by one thread
+ * at a time. ConnectFour and Just Not One moves are replayed here and the actor
+ * commits the outcome itself. Battleship boards stay hidden on the clients, so the
+ * result reported by the loser is used. Whatever ends the game first is committed
+ * exactly once, an outcome whose commit failed is kept and retried until it succeeds.
+ */
+public class GameSessionActor {
+    public static final int CONNECT_FOUR = 1;
+    public static final int BATTLESHIP = 2;
+    public static final int JUST_NOT_ONE = 3;
+
+    private static final int ROWS = 6;
+    private static final int COLUMNS = 7;
+
+    private final int gameId;
+    private final String queueName;
+    private final int typeId;
+    private final int playerA;
+    private final int playerB;
+
+    private Session session;
+    private MessageConsumer consumer;
+    private boolean finished = false;
+    // Outcome decided here whose commit failed, retried by GameServer until it goes through
+    private JSONObject pendingResult;
+    // Last time anything was published on the game topic, read by the reaper
+    private volatile long lastActivity = System.currentTimeMillis();
+    // Set while moves from the matchmaking journal are replayed, they are already recorded
+    private boolean restoring = false;
+
+    // Player A always moves first in both replayed games
+    private int nextPlayer;
+
+    // ConnectFour state
+    private final int[][] board = new int[ROWS][COLUMNS];
+    private int movesPlayed = 0;
+
+    // Just Not One state
+    private int currentNumber;
+
+    public GameSessionActor(int gameId, int typeId, int playerA, int playerB) {
+        this.gameId = gameId;
+        this.queueName = "game-session-" + gameId;
+        this.typeId = typeId;
+        this.playerA = playerA;
+        this.playerB = playerB;
+        this.nextPlayer = playerA;
+    }
+
+    /**
+     * Subscribes to the game topic and delivers every message into the mailbox
+     */
+    public void subscribe(Session session, PartitionedExecutor mailbox) throws JMSException {
+        this.session = session;
+        // Consumers for all games share one session, so creating and closing them is serialized
+        synchronized (session) {
+            consumer = session.createConsumer(session.createTopic(queueName));
+        }
+        consumer.setMessageListener(message -> {
+            lastActivity = System.currentTimeMillis();
+            try {
+                JSONObject obj = GameWireCodec.fromMessage(message);
+                if (obj != null) {
+                    mailbox.execute(gameId, () -> onGameMessage(obj));
+                }
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        });
+    }
+
+    /**
+     * Rebuilds the game state from the moves journaled before a restart,
+     * called before the actor subscribes
+     */
+    public void restore(List<int[]> moves) {
+        restoring = true;
+        try {
+            for (int[] move : moves) {
+                if (move[0] == 0) {
+                    currentNumber = move[1];
+                } else if (typeId == CONNECT_FOUR) {
+                    applyConnectFourMove(move[0], move[1]);
+                } else if (typeId == JUST_NOT_ONE) {
+                    applyNumberMove(move[0], move[1]);
+                }
+            }
+        } finally {
+            restoring = false;
+        }
+    }
+
+    /**
+     * Handles a result posted to game-result, runs on the mailbox thread
+     */
+    public void onResult(JSONObject result) {
+        if (finished) {
+            System.out.println("Dropping duplicate " + result.optString("type") + " for " + queueName);
+            return;
+        }
+        // A Battleship loser reports its own defeat, name the winner for the commit
+        if (result.optString("type").equals("result") && !result.has("winnerId") && result.has("loserId")) {
+            int loserId = result.getInt("loserId");
+            if (loserId != playerA && loserId != playerB) return;
+            result.put("winnerId", opponentOf(loserId));
+        }
+        // An outcome decided here but not committed yet wins over whatever was reported
+        finish(pendingResult != null ? pendingResult : result);
+    }
+
+    /**
+     * Commits the outcome whose commit failed again, runs on the mailbox thread
+     */
+    public void retryResult() {
+        if (finished || pendingResult == null) return;
+        finish(pendingResult);
+    }
+
+    /**
+     * Replays a message published on the game topic, runs on the mailbox thread
+     */
+    private void onGameMessage(JSONObject obj) {
+        if (finished) return;
+
+        String type = obj.optString("type", "");
+        // Result another server instance received for this game, see ClusterCoordinator
+        if (type.equals("forwardedResult")) {
+            onResult(obj.getJSONObject("result"));
+            return;
+        }
+        // The game is decided, only its commit is outstanding
+        if (pendingResult != null) return;
+        int playerId = obj.optInt("playerId", 0);
+        if (playerId != playerA && playerId != playerB) return;
+
+        if (typeId == CONNECT_FOUR && type.equals("move")) {
+            applyConnectFourMove(playerId, obj.getInt("col"));
+        } else if (typeId == JUST_NOT_ONE && type.equals("gameStart")) {
+            currentNumber = obj.getInt("startingNumber");
+            // Player 0 marks the starting number in the journal
+            GameServer.recordMove(gameId, 0, currentNumber);
+        } else if (typeId == JUST_NOT_ONE && type.equals("move")) {
+            applyNumberMove(playerId, obj.getInt("newNumber"));
+        }
+    }
+
+    private void applyConnectFourMove(int playerId, int col) {
+        if (playerId != nextPlayer || col < 0 || col >= COLUMNS) {
+            System.err.println("Ignoring out of turn move by " + playerId + " in " + queueName);
+            return;
+        }
+
+        int row = ROWS - 1;
+        while (row >= 0 && board[row][col] != 0) {
+            row--;
+        }
+        if (row < 0) {
+            System.err.println("Ignoring move into full column " + col + " in " + queueName);
+            return;
+        }
+
+        board[row][col] = playerId;
+        movesPlayed++;
+        nextPlayer = opponentOf(playerId);
+        if (!restoring) {
+            GameServer.recordMove(gameId, playerId, col);
+        }
+
+        if (isConnectFour(row, col)) {
+            finish(new JSONObject()
+                .put("type", "result")
+                .put("queue", queueName)
+                .put("winnerId", playerId));
+        } else if (movesPlayed == ROWS * COLUMNS) {
+            finish(new JSONObject()
+                .put("type", "draw")
+                .put("queue", queueName)
+                .put("gameId", gameId));
+        }
+    }
+
+    private void applyNumberMove(int playerId, int newNumber) {
+        if (playerId != nextPlayer) {
+            System.err.println("Ignoring out of turn roll by " + playerId + " in " + queueName);
+            return;
+        }
+        if (newNumber < 1 || (currentNumber > 0 && newNumber >= currentNumber)) {
+            System.err.println("Ignoring impossible roll " + newNumber + " by " + playerId + " in " + queueName);
+            return;
+        }
+        currentNumber = newNumber;
+        nextPlayer = opponentOf(playerId);
+        if (!restoring) {
+            GameServer.recordMove(gameId, playerId, newNumber);
+        }
+
+        // Rolling 1 loses the game
+        if (newNumber == 1) {
+            finish(new JSONObject()
+                .put("type", "result")
+                .put("queue", queueName)
+                .put("winnerId", opponentOf(playerId))
+                .put("loserId", playerId));
+        }
+    }
+
+    private boolean isConnectFour(int row, int col) {
+        return countLine(row, col, 1, 0) >= 4
+            || countLine(row, col, 0, 1) >= 4
+            || countLine(row, col, 1, 1) >= 4
+            || countLine(row, col, 1, -1) >= 4;
+    }
+
+    private int countLine(int row, int col, int dr, int dc) {
+        int player = board[row][col];
+        int count = 1;
+        for (int sign = -1; sign <= 1; sign += 2) {
+            int r = row + sign * dr;
+            int c = col + sign * dc;
+            while (r >= 0 && r < ROWS && c >= 0 && c < COLUMNS && board[r][c] == player) {
+                count++;
+                r += sign * dr;
+                c += sign * dc;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Stops following a game nobody plays anymore without committing a result,
+     * runs on the mailbox thread
+     */
+    public void abandon() {
+        finished = true;
+        closeConsumer();
+    }
+
+    private void finish(JSONObject result) {
+        if (!GameServer.commitResult(this, result)) {
+            pendingResult = result;
+            return;
+        }
+        pendingResult = null;
+        finished = true;
+        closeConsumer();
+    }
+
+    private void closeConsumer() {
+        try {
+            // A game already decided by its journaled moves finishes before subscribing
+            if (consumer != null) {
+                synchronized (session) {
+                    consumer.close();
+                }
+            }
+        } catch (JMSException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private int opponentOf(int playerId) {
+        return playerId == playerA ? playerB : playerA;
+    }
+
+    public int getGameId() {
+        return gameId;
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    public boolean hasPendingResult() {
+        return pendingResult != null;
+    }
+
+    public long getLastActivity() {
+        return lastActivity;
+    }
+}
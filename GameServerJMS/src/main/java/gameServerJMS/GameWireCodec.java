@@ -0,0 +1,188 @@
+package gameServerJMS;
+
+import java.nio.ByteBuffer;
+
+import javax.jms.BytesMessage;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.Session;
+import javax.jms.TextMessage;
+
+import org.json.JSONObject;
+
+/**
+ * Compact binary encoding for in-game messages on game-session topics.
+ *
+ * Every frame starts with a 6 byte header: version (1 byte), frame type (1 byte)
+ * and the sending player id (4 bytes). The body has a fixed layout per frame type:
+ * <pre>
+ * MOVE         row (1), col (1)                                      ConnectFour
+ * SHOT         row (1), col (1)                                      Battleship
+ * SHOT_RESULT  row (1), col (1), flags (1), shipRow (1), shipCol (1) Battleship
+ * NUMBER_MOVE  newNumber (4), chosenNumber (4), flags (1)            Just Not One
+ * </pre>
+ * Messages without a binary layout, and games where one of the players did not
+ * advertise binary support when joining, are still sent as JSON text.
+ */
+public class GameWireCodec {
+    public static final int VERSION = 1;
+    public static final int JSON_ONLY = 0;
+
+    private static final byte FRAME_MOVE = 1;
+    private static final byte FRAME_SHOT = 2;
+    private static final byte FRAME_SHOT_RESULT = 3;
+    private static final byte FRAME_NUMBER_MOVE = 4;
+
+    private static final int HEADER_SIZE = 6;
+
+    private static final int FLAG_HIT = 1;
+    private static final int FLAG_SHIP_DESTROYED = 1 << 1;
+    private static final int FLAG_SHIP_VERTICAL = 1 << 2;
+    private static final int FLAG_GAME_OVER = 1;
+
+    /**
+     * Returns the wire version both players can speak
+     */
+    public static int negotiate(int versionA, int versionB) {
+        return Math.min(Math.min(versionA, versionB), VERSION);
+    }
+
+    /**
+     * Builds a JMS message for the game topic, binary when the game negotiated it
+     * and the message type has a binary layout, JSON text otherwise
+     */
+    public static Message toMessage(Session session, JSONObject obj, int wireVersion) throws JMSException {
+        if (wireVersion >= VERSION) {
+            byte[] frame = encode(obj);
+            if (frame != null) {
+                BytesMessage message = session.createBytesMessage();
+                message.writeBytes(frame);
+                return message;
+            }
+        }
+        return session.createTextMessage(obj.toString());
+    }
+
+    /**
+     * Reads a game topic message in either format, returns null for unknown content
+     */
+    public static JSONObject fromMessage(Message message) throws JMSException {
+        if (message instanceof TextMessage) {
+            return new JSONObject(((TextMessage) message).getText());
+        }
+        if (message instanceof BytesMessage) {
+            BytesMessage bytesMessage = (BytesMessage) message;
+            byte[] frame = new byte[(int) bytesMessage.getBodyLength()];
+            bytesMessage.readBytes(frame);
+            return decode(frame);
+        }
+        return null;
+    }
+
+    /**
+     * Encodes a game message, returns null if its type has no binary layout
+     */
+    public static byte[] encode(JSONObject obj) {
+        String type = obj.optString("type", "");
+        int playerId = obj.optInt("playerId", 0);
+
+        switch (type) {
+            case "move":
+                if (obj.has("newNumber")) {
+                    ByteBuffer numberMove = header(FRAME_NUMBER_MOVE, playerId, 9);
+                    numberMove.putInt(obj.getInt("newNumber"));
+                    numberMove.putInt(obj.getInt("chosenNumber"));
+                    numberMove.put((byte) (obj.optBoolean("isGameOver", false) ? FLAG_GAME_OVER : 0));
+                    return numberMove.array();
+                }
+                ByteBuffer move = header(FRAME_MOVE, playerId, 2);
+                move.put((byte) obj.getInt("row"));
+                move.put((byte) obj.getInt("col"));
+                return move.array();
+
+            case "shot":
+                ByteBuffer shot = header(FRAME_SHOT, playerId, 2);
+                shot.put((byte) obj.getInt("row"));
+                shot.put((byte) obj.getInt("col"));
+                return shot.array();
+
+            case "shot_result":
+                boolean destroyed = obj.optBoolean("shipDestroyed", false);
+                int flags = (obj.getBoolean("hit") ? FLAG_HIT : 0)
+                        | (destroyed ? FLAG_SHIP_DESTROYED : 0)
+                        | (destroyed && obj.getBoolean("shipVertical") ? FLAG_SHIP_VERTICAL : 0);
+                ByteBuffer shotResult = header(FRAME_SHOT_RESULT, playerId, 5);
+                shotResult.put((byte) obj.getInt("row"));
+                shotResult.put((byte) obj.getInt("col"));
+                shotResult.put((byte) flags);
+                shotResult.put((byte) (destroyed ? obj.getInt("shipRow") : 0));
+                shotResult.put((byte) (destroyed ? obj.getInt("shipCol") : 0));
+                return shotResult.array();
+
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Decodes a binary frame into the same JSON shape the controllers handle,
+     * returns null for a version or frame type this build does not know
+     */
+    public static JSONObject decode(byte[] frame) {
+        if (frame.length < HEADER_SIZE || frame[0] != VERSION) {
+            System.err.println("Dropping game frame with unsupported wire version");
+            return null;
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(frame);
+        buffer.get();
+        byte frameType = buffer.get();
+        int playerId = buffer.getInt();
+
+        JSONObject obj = new JSONObject().put("playerId", playerId);
+        switch (frameType) {
+            case FRAME_MOVE:
+                return obj.put("type", "move")
+                        .put("row", buffer.get())
+                        .put("col", buffer.get());
+
+            case FRAME_SHOT:
+                return obj.put("type", "shot")
+                        .put("row", buffer.get())
+                        .put("col", buffer.get());
+
+            case FRAME_SHOT_RESULT:
+                obj.put("type", "shot_result")
+                        .put("row", buffer.get())
+                        .put("col", buffer.get());
+                int flags = buffer.get();
+                obj.put("hit", (flags & FLAG_HIT) != 0);
+                int shipRow = buffer.get();
+                int shipCol = buffer.get();
+                if ((flags & FLAG_SHIP_DESTROYED) != 0) {
+                    obj.put("shipDestroyed", true)
+                            .put("shipRow", shipRow)
+                            .put("shipCol", shipCol)
+                            .put("shipVertical", (flags & FLAG_SHIP_VERTICAL) != 0);
+                }
+                return obj;
+
+            case FRAME_NUMBER_MOVE:
+                return obj.put("type", "move")
+                        .put("newNumber", buffer.getInt())
+                        .put("chosenNumber", buffer.getInt())
+                        .put("isGameOver", (buffer.get() & FLAG_GAME_OVER) != 0);
+
+            default:
+                System.err.println("Dropping unknown game frame type " + frameType);
+                return null;
+        }
+    }
+
+    private static ByteBuffer header(byte frameType, int playerId, int bodySize) {
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + bodySize);
+        buffer.put((byte) VERSION);
+        buffer.put(frameType);
+        buffer.putInt(playerId);
+        return buffer;
+    }
+}
@@ -16,9 +16,6 @@ import javafx.util.Duration;
 import org.apache.activemq.ActiveMQConnectionFactory;
 import org.json.JSONObject;
 
-import java.sql.PreparedStatement;
-import java.sql.ResultSet;
-
 import javax.jms.*;
 
 
@@ -46,7 +43,6 @@ public class JustNotOneController {
     private int currentNumber;
     private boolean isMyTurn;
     private int myPlayerId;
-    private int opponentId;
     private String gameQueueName;
     private Session session;
     private Connection connection;
@@ -57,6 +53,7 @@ public class JustNotOneController {
     private String opponentUsername;
     private Timeline rollingAnimation;
     private Stage stage;
+    private int wireVersion = GameWireCodec.JSON_ONLY;
 
     public JustNotOneController() {
         this.opponentUsername = "Opponent";
@@ -132,7 +129,6 @@ public class JustNotOneController {
                         gameMessageLabel.setTextFill(Color.RED);
                         currentNumberLabel.setText("1");
                         sendMove(1, 1);
-                        sendGameResult(false);
                     });
                 });
                 return;
@@ -158,7 +154,6 @@ public class JustNotOneController {
                         gameMessageLabel.setText("You picked " + chosenNumber + " and rolled " + newNumber + " - you lost!");
                         gameMessageLabel.setTextFill(Color.RED);
                         sendMove(newNumber, chosenNumber);
-                        sendGameResult(false);
                     } else {
                         // Continue game, switch turns
                         if (newNumber == 2) {
@@ -272,6 +267,7 @@ public class JustNotOneController {
         try {
             Topic gameTopic = session.createTopic(gameQueueName);
             MessageProducer producer = session.createProducer(gameTopic);
+            producer.setDeliveryMode(DeliveryMode.NON_PERSISTENT);
 
             JSONObject obj = new JSONObject();
             obj.put("type", "move");
@@ -280,8 +276,7 @@ public class JustNotOneController {
             obj.put("chosenNumber", chosenNumber);
             obj.put("isGameOver", (newNumber == 1));
 
-            TextMessage msg = session.createTextMessage(obj.toString());
-            producer.send(msg);
+            producer.send(GameWireCodec.toMessage(session, obj, wireVersion));
             producer.close();
         } catch (JMSException e) {
             e.printStackTrace();
@@ -295,6 +290,7 @@ public class JustNotOneController {
         try {
             Topic gameTopic = session.createTopic(gameQueueName);
             MessageProducer producer = session.createProducer(gameTopic);
+            producer.setDeliveryMode(DeliveryMode.NON_PERSISTENT);
 
             JSONObject obj = new JSONObject();
             obj.put("type", "gameStart");
@@ -309,49 +305,6 @@ public class JustNotOneController {
         }
     }
 
-    /**
-     * Sends final game result to server
-     */
-    private void sendGameResult(boolean didIWin) {
-        try {
-            Destination resultQueue = session.createQueue("game-result");
-            MessageProducer producer = session.createProducer(resultQueue);
-            JSONObject obj = new JSONObject();
-            obj.put("type", "result");
-            obj.put("queue", gameQueueName);
-            obj.put("winnerId", didIWin ? myPlayerId : opponentId);
-            obj.put("loserId", didIWin ? opponentId : myPlayerId);
-
-            TextMessage msg = session.createTextMessage(obj.toString());
-            producer.send(msg);
-            producer.close();
-        } catch (JMSException e) {
-            e.printStackTrace();
-        }
-    }
-
-    /**
-     * Gets opponent player ID from database using game queue name
-     */
-    private int getOpponentIdFromServer(String queueName, int myPlayerId) {
-        try (java.sql.Connection conn = DatabaseManager.getConnection()) {
-            String gameId = queueName.replace("game-session-", "");
-            String sql = "SELECT player_a, player_b FROM Games WHERE game_id = ?";
-            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
-                stmt.setInt(1, Integer.parseInt(gameId));
-                ResultSet rs = stmt.executeQuery();
-                if (rs.next()) {
-                    int playerA = rs.getInt("player_a");
-                    int playerB = rs.getInt("player_b");
-                    return myPlayerId == playerA ? playerB : playerA;
-                }
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-        return myPlayerId = 0; //if fails
-    }
-
     /**
      * Shows game over dialog with result
      */
@@ -378,6 +331,28 @@ public class JustNotOneController {
         });
     }
 
+    /**
+     * Shows dialog for a game the server called off, runs on the FX thread
+     */
+    private void showCalledOff() {
+        if (gameOverDialogShown) return;
+        gameOverDialogShown = true;
+
+        Alert alert = new Alert(Alert.AlertType.INFORMATION);
+        alert.setTitle("Game Called Off");
+        alert.setHeaderText("Game Called Off");
+        alert.setContentText("The server could not record this game, it does not count");
+        alert.setOnHidden(evt -> {
+            if (stage != null) {
+                stage.close();
+            }
+            if (onGameEnd != null) {
+                onGameEnd.run();
+            }
+        });
+        alert.show();
+    }
+
     /**
      * Shows alert dialog for user input errors
      */
@@ -400,10 +375,8 @@ public class JustNotOneController {
         this.isMyTurn = yourTurn;
         this.opponentUsername = opponentUsername;
 
-        this.opponentId = getOpponentIdFromServer(queueName, playerId);
-
         // Initialize JMS connection
-        ConnectionFactory factory = new ActiveMQConnectionFactory("tcp://localhost:61616");
+        ConnectionFactory factory = new ActiveMQConnectionFactory(GameClient.getBrokerUrl());
         connection = factory.createConnection();
         connection.start();
         session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
@@ -414,9 +387,8 @@ public class JustNotOneController {
         // Handle incoming game messages
         consumer.setMessageListener(message -> {
             try {
-                if (message instanceof TextMessage) {
-                    String json = ((TextMessage) message).getText();
-                    JSONObject obj = new JSONObject(json);
+                JSONObject obj = GameWireCodec.fromMessage(message);
+                if (obj != null) {
                     String type = obj.getString("type");
 
                     if (type.equals("gameStart")) {
@@ -458,6 +430,12 @@ public class JustNotOneController {
                                 }
                             });
                         }
+                    } else if (type.equals("aborted")) {
+                        // The server could not record the game and called it off
+                        Platform.runLater(() -> {
+                            gameOver = true;
+                            showCalledOff();
+                        });
                     } else if (type.equals("result")) {
                         // Final game result received
                         if (!gameOverDialogShown) {
@@ -493,6 +471,10 @@ public class JustNotOneController {
     public void setOnGameEnd(Runnable onGameEnd) {
         this.onGameEnd = onGameEnd;
     }
+
+    public void setWireVersion(int wireVersion) {
+        this.wireVersion = wireVersion;
+    }
     
     private void addHoverEffects() {
         // Submit button
@@ -63,12 +63,8 @@ public class LeaderboardController {
         leaderboardList.getChildren().clear();
         
         try (Connection conn = DatabaseManager.getConnection()) {
-            // Query to get top players with their stats
-            String sql = "SELECT p.username, p.current_rating, s.wins, s.losses, s.draws " +
-                         "FROM Players p JOIN Stats s ON p.player_id = s.player_id " +
-                         "ORDER BY p.current_rating DESC LIMIT 10";
-            
-            try (PreparedStatement stmt = conn.prepareStatement(sql)) {
+            // Top players with their stats
+            try (PreparedStatement stmt = Query.TOP_PLAYERS.prepare(conn)) {
                 ResultSet rs = stmt.executeQuery();
                 
                 int rank = 1;
@@ -23,16 +23,13 @@ public class LeaderboardManager {
             
             try {
                 // Clear existing leaderboard data
-                try (PreparedStatement clearStmt = conn.prepareStatement("TRUNCATE TABLE leaderboard")) {
+                try (PreparedStatement clearStmt = Query.CLEAR_LEADERBOARD.prepare(conn)) {
                     clearStmt.executeUpdate();
                 }
                 
                 // Get all players ordered by rating (highest first)
-                String selectSql = "SELECT player_id, current_rating FROM Players ORDER BY current_rating DESC";
-                
-                try (PreparedStatement selectStmt = conn.prepareStatement(selectSql);
-                     PreparedStatement insertStmt = conn.prepareStatement(
-                         "INSERT INTO leaderboard (player_id, ranking, player_rating) VALUES (?, ?, ?)")) {
+                try (PreparedStatement selectStmt = Query.PLAYERS_BY_RATING.prepare(conn);
+                     PreparedStatement insertStmt = Query.INSERT_LEADERBOARD.prepare(conn)) {
                     
                     ResultSet rs = selectStmt.executeQuery();
                     int rank = 1;
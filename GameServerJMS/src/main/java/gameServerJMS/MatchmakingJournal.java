@@ -0,0 +1,650 @@
+package gameServerJMS;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+import javax.management.ObjectName;
+
+/**
+ * Keeps the matchmaking state in a memory mapped file so a restarted server picks up
+ * the waiting queues and running games where the previous process left them.
+ *
+ * The file holds two slots. Each slot starts with a snapshot of the whole state and is
+ * followed by a journal of the changes made since. A new snapshot is always written to
+ * the slot that is not in use and only becomes valid once its header is complete, so a
+ * crash halfway through leaves the previous slot intact. Writes go to the page cache,
+ * which survives the process dying, only the snapshots are forced to disk.
+ *
+ * Recording a change only takes a lock around an in-memory update and a small copy into
+ * the mapping. Snapshots are written and forced by their own thread from a copy of the
+ * state; changes recorded meanwhile still go to the active slot and are also kept aside,
+ * then copied after the new snapshot before it takes over. A snapshot is started once
+ * the active slot is three quarters full.
+ *
+ * Slots start at MIN_SLOT_SIZE and double whenever a snapshot would fill more than half
+ * of one, so every snapshot leaves at least as much room for the journal as it takes and
+ * the cost of snapshots stays proportional to the changes journaled. A grown snapshot is
+ * written to the second slot of the larger layout, which lies past both old slots, and
+ * every header records its slot size, so a crash while growing also keeps the previous
+ * slot readable. If the active slot fills up before a snapshot succeeds, journaling stops
+ * until one does, which is exposed as the gameServerJMS:type=MatchmakingJournal MXBean.
+ */
+public class MatchmakingJournal implements MatchmakingJournalMXBean {
+    private static final int MAGIC = 0x4D4D4A33;
+    private static final int MIN_SLOT_SIZE = 4 * 1024 * 1024;
+    // Both slots have to fit one mapping
+    private static final int MAX_SLOT_SIZE = 512 * 1024 * 1024;
+    // magic, generation, snapshot length, slot size
+    private static final int HEADER_SIZE = 4 + 8 + 4 + 4;
+
+    private static final byte END = 0;
+    private static final byte ENQUEUE = 1;
+    private static final byte DEQUEUE = 2;
+    private static final byte GAME_START = 3;
+    private static final byte GAME_MOVE = 4;
+    private static final byte GAME_END = 5;
+
+    private final FileChannel channel;
+    // Guards the mirror and the journal, never held across a force
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ExecutorService snapshotter = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "matchmaking-snapshot");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile MappedByteBuffer buffer;
+    // Slot size and active slot only change on the snapshot thread, under the lock
+    private volatile int slotSize = MIN_SLOT_SIZE;
+    // Start of the slot in use, 0 or slotSize
+    private volatile int activeBase;
+    private long generation;
+    // Next free offset in the active slot, relative to the start of the file
+    private volatile int position;
+    // Records journaled since the running snapshot copied the state, null when none runs
+    private List<byte[]> sinceCopy;
+    private int sinceCopyBytes;
+    // Set when a record did not fit the active slot, it then only exists in sinceCopy
+    private boolean overflowed;
+    // Set while changes only reach the mirror because the active slot is full
+    private volatile boolean behind;
+    private volatile long snapshots;
+    private volatile long snapshotFailures;
+
+    // Mirror of what has been journaled, snapshots are taken from here rather than
+    // from the live maps so a snapshot and the journal after it always line up
+    private final Map<Integer, LinkedHashMap<String, WaitingRecord>> waiting = new LinkedHashMap<>();
+    private final Map<Integer, GameRecord> games = new LinkedHashMap<>();
+
+    public MatchmakingJournal(String fileName) throws IOException {
+        Path path = Paths.get(fileName);
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                Math.min(Math.max(channel.size(), 2L * MIN_SLOT_SIZE), 2L * MAX_SLOT_SIZE));
+
+        long start = System.nanoTime();
+        int base = newestSlot();
+        boolean restored = false;
+        activeBase = MIN_SLOT_SIZE;
+        if (base >= 0) {
+            try {
+                activeBase = base;
+                slotSize = buffer.getInt(base + 16);
+                generation = buffer.getLong(base + 4);
+                int snapshotLength = buffer.getInt(base + 12);
+                readSnapshot(base + HEADER_SIZE);
+                position = replayJournal(base + HEADER_SIZE + snapshotLength);
+                restored = true;
+                System.out.println("Restored matchmaking state from " + fileName + " in "
+                        + (System.nanoTime() - start) / 1_000_000 + " ms: "
+                        + waitingCount() + " waiting players, " + games.size() + " running games");
+            } catch (RuntimeException e) {
+                System.err.println("Matchmaking state in " + fileName + " is unreadable, starting empty");
+                e.printStackTrace();
+                waiting.clear();
+                games.clear();
+                buffer.clear();
+                slotSize = MIN_SLOT_SIZE;
+                activeBase = MIN_SLOT_SIZE;
+            }
+        }
+        // Compact the replayed journal into a fresh snapshot right away, nothing else runs yet
+        sinceCopy = new ArrayList<>();
+        writeSnapshot(new State(waiting, games));
+        if (snapshots == 0 && !restored) {
+            // No slot to journal into until a snapshot succeeds
+            behind = true;
+        }
+
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                    new ObjectName("gameServerJMS:type=MatchmakingJournal"));
+        } catch (Exception e) {
+            System.err.println("Failed to register matchmaking journal MXBean: " + e.getMessage());
+        }
+    }
+
+    public void enqueued(int typeId, String playerId, int wireVersion, int rating, long enqueuedAt) {
+        int id = Integer.parseInt(playerId);
+        lock.lock();
+        try {
+            waiting.computeIfAbsent(typeId, k -> new LinkedHashMap<>())
+                    .put(playerId, new WaitingRecord(wireVersion, rating, enqueuedAt));
+            append(ENQUEUE, 21, record -> {
+                record.putInt(typeId);
+                record.putInt(id);
+                record.put((byte) wireVersion);
+                record.putInt(rating);
+                record.putLong(enqueuedAt);
+            });
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void dequeued(int typeId, String playerId) {
+        int id = Integer.parseInt(playerId);
+        lock.lock();
+        try {
+            Map<String, WaitingRecord> queue = waiting.get(typeId);
+            if (queue == null || queue.remove(playerId) == null) return;
+            append(DEQUEUE, 8, record -> {
+                record.putInt(typeId);
+                record.putInt(id);
+            });
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void gameStarted(GameRegistry.ActiveGame game) {
+        lock.lock();
+        try {
+            games.put(game.gameId, new GameRecord(game.gameId, game.typeId, game.playerA, game.playerB, game.startTime));
+            append(GAME_START, 24, record -> {
+                record.putInt(game.gameId);
+                record.putInt(game.typeId);
+                record.putInt(game.playerA);
+                record.putInt(game.playerB);
+                record.putLong(game.startTime);
+            });
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Records a move the session actor accepted, so the actor can be rebuilt after a restart
+     */
+    public void gameMove(int gameId, int playerId, int value) {
+        lock.lock();
+        try {
+            GameRecord game = games.get(gameId);
+            if (game == null) return;
+            game.moves.add(new int[] { playerId, value });
+            append(GAME_MOVE, 12, record -> {
+                record.putInt(gameId);
+                record.putInt(playerId);
+                record.putInt(value);
+            });
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void gameEnded(int gameId) {
+        lock.lock();
+        try {
+            if (games.remove(gameId) == null) return;
+            append(GAME_END, 4, record -> record.putInt(gameId));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waiting players of every type in queue order
+     */
+    public Map<Integer, LinkedHashMap<String, WaitingRecord>> getWaiting() {
+        lock.lock();
+        try {
+            Map<Integer, LinkedHashMap<String, WaitingRecord>> copy = new ConcurrentHashMap<>();
+            waiting.forEach((typeId, queue) -> copy.put(typeId, new LinkedHashMap<>(queue)));
+            return copy;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public List<GameRecord> getGames() {
+        lock.lock();
+        try {
+            return new ArrayList<>(games.values());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Starts writing the current state into the unused slot on the snapshot thread,
+     * unless a snapshot is already running
+     */
+    public void snapshot() {
+        lock.lock();
+        try {
+            startSnapshot();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Waits for a running snapshot and closes the file, the journal already holds every change
+     */
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            snapshotter.shutdown();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            snapshotter.awaitTermination(30, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        channel.close();
+    }
+
+    /**
+     * Copies the state and hands it to the snapshot thread, called with the lock held
+     */
+    private void startSnapshot() {
+        if (sinceCopy != null || snapshotter.isShutdown()) return;
+        State state = new State(waiting, games);
+        sinceCopy = new ArrayList<>();
+        sinceCopyBytes = 0;
+        snapshotter.execute(() -> writeSnapshot(state));
+    }
+
+    /**
+     * Writes state into the unused slot, growing the slots first when the snapshot would
+     * fill more than half of one, then makes it the active slot together with everything
+     * journaled since the state was copied. Runs on the snapshot thread.
+     */
+    private void writeSnapshot(State state) {
+        long required = HEADER_SIZE + state.size() + 1;
+        int newSlotSize = slotSize;
+        while (newSlotSize < 2 * required && newSlotSize < MAX_SLOT_SIZE) {
+            newSlotSize *= 2;
+        }
+        if (newSlotSize < 2 * required) {
+            snapshotFailed("Matchmaking state of " + required + " bytes does not fit into a snapshot slot");
+            return;
+        }
+
+        MappedByteBuffer target = buffer;
+        int base = activeBase == 0 ? slotSize : 0;
+        if (newSlotSize != slotSize) {
+            try {
+                target = channel.map(FileChannel.MapMode.READ_WRITE, 0, 2L * newSlotSize);
+            } catch (IOException e) {
+                snapshotFailed("Failed to grow the matchmaking state file: " + e.getMessage());
+                return;
+            }
+            // Past both old slots, so the active one stays intact until this one is complete
+            base = newSlotSize;
+        }
+
+        int snapshotLength;
+        try {
+            // Own position and limit, the journal keeps appending to the active slot meanwhile
+            ByteBuffer out = target.duplicate();
+            out.putInt(base, 0);
+            out.position(base + HEADER_SIZE);
+            out.limit(base + newSlotSize);
+            state.writeTo(out);
+            snapshotLength = out.position() - base - HEADER_SIZE;
+            out.put(END);
+            out.putLong(base + 4, generation + 1);
+            out.putInt(base + 12, snapshotLength);
+            out.putInt(base + 16, newSlotSize);
+            target.force(base, HEADER_SIZE + snapshotLength + 1);
+        } catch (BufferOverflowException e) {
+            snapshotFailed("Matchmaking state does not fit into a snapshot slot");
+            return;
+        } catch (RuntimeException e) {
+            snapshotFailed("Failed to write matchmaking snapshot: " + e.getMessage());
+            return;
+        }
+
+        int oldSlotSize = slotSize;
+        lock.lock();
+        try {
+            int next = base + HEADER_SIZE + snapshotLength;
+            if (next + sinceCopyBytes + 1 > base + newSlotSize) {
+                snapshotFailedLocked("Matchmaking changes made while snapshotting do not fit into the new slot");
+                return;
+            }
+            for (byte[] record : sinceCopy) {
+                target.put(next, record);
+                next += record.length;
+            }
+            target.put(next, END);
+            target.putInt(base, MAGIC);
+            if (newSlotSize != oldSlotSize) {
+                buffer = target;
+                slotSize = newSlotSize;
+            }
+            generation++;
+            activeBase = base;
+            position = next;
+            sinceCopy = null;
+            overflowed = false;
+            behind = false;
+            snapshots++;
+        } finally {
+            lock.unlock();
+        }
+        target.force(base, HEADER_SIZE);
+        if (newSlotSize != oldSlotSize) {
+            // The old second slot now lies inside the first slot of the new layout,
+            // only cleared once the new header is on disk
+            target.putInt(oldSlotSize, 0);
+            target.force(oldSlotSize, HEADER_SIZE);
+            System.out.println("Matchmaking state slots grown to " + newSlotSize / (1024 * 1024) + " MB");
+        }
+    }
+
+    private void snapshotFailed(String reason) {
+        lock.lock();
+        try {
+            snapshotFailedLocked(reason);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void snapshotFailedLocked(String reason) {
+        snapshotFailures++;
+        sinceCopy = null;
+        // Records that did not fit the active slot are gone with the failed snapshot
+        if (overflowed) {
+            behind = true;
+        }
+        System.err.println(reason + ", keeping the previous snapshot");
+    }
+
+    /**
+     * Journals one record, called with the lock held after the mirror was updated
+     */
+    private void append(byte type, int length, Consumer<ByteBuffer> payload) {
+        ByteBuffer encoded = ByteBuffer.allocate(1 + length);
+        encoded.put(type);
+        payload.accept(encoded);
+        byte[] record = encoded.array();
+        if (sinceCopy != null) {
+            sinceCopy.add(record);
+            sinceCopyBytes += record.length;
+        }
+        // Until a snapshot succeeds the mirror alone holds the changes
+        if (behind) {
+            startSnapshot();
+            return;
+        }
+        // A record is already missing from the active slot, the running snapshot carries the rest
+        if (overflowed) return;
+
+        int limit = activeBase + slotSize;
+        if (position + record.length + 1 > limit) {
+            if (sinceCopy == null) {
+                // The mirror already holds the change, so the new snapshot includes it
+                startSnapshot();
+            } else {
+                // Kept in sinceCopy, the running snapshot carries it into its slot
+                overflowed = true;
+            }
+            return;
+        }
+        MappedByteBuffer target = buffer;
+        target.put(position + 1, record, 1, length);
+        target.put(position + record.length, END);
+        // The type byte goes last so a half written record reads as the end of the journal
+        target.put(position, type);
+        position += record.length;
+
+        if (position - activeBase > slotSize / 4 * 3) {
+            startSnapshot();
+        }
+    }
+
+    private void readSnapshot(int offset) {
+        buffer.position(offset);
+        int typeCount = buffer.getInt();
+        for (int i = 0; i < typeCount; i++) {
+            int typeId = buffer.getInt();
+            int count = buffer.getInt();
+            LinkedHashMap<String, WaitingRecord> queue = new LinkedHashMap<>();
+            for (int j = 0; j < count; j++) {
+                String playerId = String.valueOf(buffer.getInt());
+                queue.put(playerId, new WaitingRecord(buffer.get(), buffer.getInt(), buffer.getLong()));
+            }
+            waiting.put(typeId, queue);
+        }
+        int gameCount = buffer.getInt();
+        for (int i = 0; i < gameCount; i++) {
+            GameRecord game = new GameRecord(buffer.getInt(), buffer.getInt(), buffer.getInt(), buffer.getInt(), buffer.getLong());
+            int moveCount = buffer.getInt();
+            for (int j = 0; j < moveCount; j++) {
+                game.moves.add(new int[] { buffer.getInt(), buffer.getInt() });
+            }
+            games.put(game.gameId, game);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * Applies the journal records following the snapshot and returns where the next one goes
+     */
+    private int replayJournal(int offset) {
+        int limit = activeBase + slotSize;
+        buffer.position(offset);
+        buffer.limit(limit);
+        try {
+            while (buffer.hasRemaining()) {
+                int recordStart = buffer.position();
+                byte type = buffer.get();
+                if (type == ENQUEUE) {
+                    int typeId = buffer.getInt();
+                    String playerId = String.valueOf(buffer.getInt());
+                    WaitingRecord record = new WaitingRecord(buffer.get(), buffer.getInt(), buffer.getLong());
+                    waiting.computeIfAbsent(typeId, k -> new LinkedHashMap<>()).put(playerId, record);
+                } else if (type == DEQUEUE) {
+                    int typeId = buffer.getInt();
+                    String playerId = String.valueOf(buffer.getInt());
+                    Map<String, WaitingRecord> queue = waiting.get(typeId);
+                    if (queue != null) queue.remove(playerId);
+                } else if (type == GAME_START) {
+                    GameRecord game = new GameRecord(buffer.getInt(), buffer.getInt(), buffer.getInt(), buffer.getInt(), buffer.getLong());
+                    games.put(game.gameId, game);
+                } else if (type == GAME_MOVE) {
+                    GameRecord game = games.get(buffer.getInt());
+                    int playerId = buffer.getInt();
+                    int value = buffer.getInt();
+                    if (game != null) game.moves.add(new int[] { playerId, value });
+                } else if (type == GAME_END) {
+                    games.remove(buffer.getInt());
+                } else {
+                    return recordStart;
+                }
+            }
+            return buffer.position();
+        } finally {
+            buffer.clear();
+        }
+    }
+
+    /**
+     * Start of the valid slot with the highest generation, or -1. Slots start at 0 or at
+     * their own size, which is MIN_SLOT_SIZE doubled some number of times.
+     */
+    private int newestSlot() {
+        int newest = -1;
+        long newestGeneration = -1;
+        for (long base = 0; base + HEADER_SIZE <= buffer.capacity(); base = base == 0 ? MIN_SLOT_SIZE : base * 2) {
+            int at = (int) base;
+            if (buffer.getInt(at) != MAGIC) continue;
+            int size = buffer.getInt(at + 16);
+            if (size < MIN_SLOT_SIZE || size > MAX_SLOT_SIZE || (base != 0 && base != size)
+                    || base + size > buffer.capacity()) continue;
+            long slotGeneration = buffer.getLong(at + 4);
+            if (slotGeneration > newestGeneration) {
+                newest = at;
+                newestGeneration = slotGeneration;
+            }
+        }
+        return newest;
+    }
+
+    @Override
+    public int getSlotBytes() {
+        return slotSize;
+    }
+
+    @Override
+    public int getJournalBytes() {
+        return position - activeBase;
+    }
+
+    @Override
+    public long getSnapshots() {
+        return snapshots;
+    }
+
+    @Override
+    public long getSnapshotFailures() {
+        return snapshotFailures;
+    }
+
+    @Override
+    public boolean isBehind() {
+        return behind;
+    }
+
+    private int waitingCount() {
+        int count = 0;
+        for (Map<String, WaitingRecord> queue : waiting.values()) {
+            count += queue.size();
+        }
+        return count;
+    }
+
+    /**
+     * Copy of the mirror a snapshot is written from
+     */
+    private static class State {
+        final List<Map.Entry<Integer, List<Map.Entry<String, WaitingRecord>>>> waiting = new ArrayList<>();
+        final List<GameRecord> games = new ArrayList<>();
+
+        State(Map<Integer, LinkedHashMap<String, WaitingRecord>> waiting, Map<Integer, GameRecord> games) {
+            waiting.forEach((typeId, queue) -> this.waiting.add(Map.entry(typeId, new ArrayList<>(queue.entrySet()))));
+            for (GameRecord game : games.values()) {
+                GameRecord copy = new GameRecord(game.gameId, game.typeId, game.playerA, game.playerB, game.startTime);
+                copy.moves.addAll(game.moves);
+                this.games.add(copy);
+            }
+        }
+
+        /**
+         * Bytes writeTo() is going to write
+         */
+        long size() {
+            long size = 4 + 4;
+            for (Map.Entry<Integer, List<Map.Entry<String, WaitingRecord>>> queue : waiting) {
+                size += 4 + 4 + 17L * queue.getValue().size();
+            }
+            for (GameRecord game : games) {
+                size += 28 + 8L * game.moves.size();
+            }
+            return size;
+        }
+
+        void writeTo(ByteBuffer out) {
+            out.putInt(waiting.size());
+            for (Map.Entry<Integer, List<Map.Entry<String, WaitingRecord>>> queue : waiting) {
+                out.putInt(queue.getKey());
+                out.putInt(queue.getValue().size());
+                for (Map.Entry<String, WaitingRecord> player : queue.getValue()) {
+                    out.putInt(Integer.parseInt(player.getKey()));
+                    out.put((byte) player.getValue().wireVersion);
+                    out.putInt(player.getValue().rating);
+                    out.putLong(player.getValue().enqueuedAt);
+                }
+            }
+            out.putInt(games.size());
+            for (GameRecord game : games) {
+                out.putInt(game.gameId);
+                out.putInt(game.typeId);
+                out.putInt(game.playerA);
+                out.putInt(game.playerB);
+                out.putLong(game.startTime);
+                out.putInt(game.moves.size());
+                for (int[] move : game.moves) {
+                    out.putInt(move[0]);
+                    out.putInt(move[1]);
+                }
+            }
+        }
+    }
+
+    /**
+     * A waiting player as it was journaled
+     */
+    public static class WaitingRecord {
+        public final int wireVersion;
+        public final int rating;
+        public final long enqueuedAt;
+
+        WaitingRecord(int wireVersion, int rating, long enqueuedAt) {
+            this.wireVersion = wireVersion;
+            this.rating = rating;
+            this.enqueuedAt = enqueuedAt;
+        }
+    }
+
+    /**
+     * A running game as it was journaled, with the moves its session actor accepted
+     */
+    public static class GameRecord {
+        public final int gameId;
+        public final int typeId;
+        public final int playerA;
+        public final int playerB;
+        public final long startTime;
+        public final List<int[]> moves = new ArrayList<>();
+
+        GameRecord(int gameId, int typeId, int playerA, int playerB, long startTime) {
+            this.gameId = gameId;
+            this.typeId = typeId;
+            this.playerA = playerA;
+            this.playerB = playerB;
+            this.startTime = startTime;
+        }
+    }
+}
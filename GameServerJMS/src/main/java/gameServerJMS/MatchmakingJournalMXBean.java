@@ -0,0 +1,14 @@
+package gameServerJMS;
+
+/**
+ * JMX view of the matchmaking state file, see MatchmakingJournal
+ */
+public interface MatchmakingJournalMXBean {
+    int getSlotBytes();
+    // Bytes journaled since the last snapshot, snapshot included
+    int getJournalBytes();
+    long getSnapshots();
+    long getSnapshotFailures();
+    // True while changes are not journaled because the last snapshot failed
+    boolean isBehind();
+}
@@ -0,0 +1,211 @@
+package gameServerJMS;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.ObjectName;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Per game type matchmaking telemetry: queue depth, join/cancel/match/expiry counters
+ * and a histogram of how long matched players waited.
+ *
+ * Recording is allocation free, counters are LongAdders and the histogram is a fixed
+ * array. The queue depth is published by the type's matchmaking partition, which owns
+ * the queue, so readers never touch the queue itself. Every type is registered as an MXBean under gameServerJMS:type=Matchmaking
+ * and all of them are served as Prometheus text on /metrics, together with the state
+ * of the matchmaking journal.
+ */
+public class MatchmakingMetrics {
+    private static final double[] QUANTILES = { 0.5, 0.9, 0.99 };
+
+    private final Map<Integer, TypeMetrics> types = new ConcurrentHashMap<>();
+    private volatile MatchmakingJournalMXBean journal;
+
+    public void setJournal(MatchmakingJournalMXBean journal) {
+        this.journal = journal;
+    }
+
+    public TypeMetrics forType(int typeId) {
+        TypeMetrics metrics = types.get(typeId);
+        if (metrics == null) {
+            metrics = types.computeIfAbsent(typeId, this::register);
+        }
+        return metrics;
+    }
+
+    /**
+     * Serves the metrics as text on the given port, 0 leaves the endpoint off
+     */
+    public void startHttpEndpoint(int port) throws IOException {
+        if (port <= 0) return;
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = render().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+        System.out.println("Matchmaking metrics on http://localhost:" + port + "/metrics");
+    }
+
+    /**
+     * Prometheus text exposition of every type seen so far
+     */
+    public String render() {
+        StringBuilder out = new StringBuilder();
+        out.append("# TYPE matchmaking_queue_depth gauge\n");
+        types.forEach((typeId, m) -> line(out, "matchmaking_queue_depth", typeId, m.getQueueDepth()));
+        out.append("# TYPE matchmaking_joins_total counter\n");
+        types.forEach((typeId, m) -> line(out, "matchmaking_joins_total", typeId, m.getJoins()));
+        out.append("# TYPE matchmaking_cancels_total counter\n");
+        types.forEach((typeId, m) -> line(out, "matchmaking_cancels_total", typeId, m.getCancels()));
+        out.append("# TYPE matchmaking_matches_total counter\n");
+        types.forEach((typeId, m) -> line(out, "matchmaking_matches_total", typeId, m.getMatches()));
+        out.append("# TYPE matchmaking_expired_total counter\n");
+        types.forEach((typeId, m) -> line(out, "matchmaking_expired_total", typeId, m.getExpired()));
+        out.append("# TYPE matchmaking_wait_millis summary\n");
+        types.forEach((typeId, m) -> {
+            for (double quantile : QUANTILES) {
+                out.append("matchmaking_wait_millis{type_id=\"").append(typeId)
+                   .append("\",quantile=\"").append(quantile).append("\"} ")
+                   .append(m.waitTimes.valueAtQuantile(quantile)).append('\n');
+            }
+            line(out, "matchmaking_wait_millis_sum", typeId, m.waitTimes.getSum());
+            line(out, "matchmaking_wait_millis_count", typeId, m.waitTimes.getCount());
+        });
+        MatchmakingJournalMXBean journal = this.journal;
+        if (journal != null) {
+            out.append("# TYPE matchmaking_journal_slot_bytes gauge\n")
+               .append("matchmaking_journal_slot_bytes ").append(journal.getSlotBytes()).append('\n');
+            out.append("# TYPE matchmaking_journal_bytes gauge\n")
+               .append("matchmaking_journal_bytes ").append(journal.getJournalBytes()).append('\n');
+            out.append("# TYPE matchmaking_journal_snapshot_failures_total counter\n")
+               .append("matchmaking_journal_snapshot_failures_total ").append(journal.getSnapshotFailures()).append('\n');
+            out.append("# TYPE matchmaking_journal_behind gauge\n")
+               .append("matchmaking_journal_behind ").append(journal.isBehind() ? 1 : 0).append('\n');
+        }
+        return out.toString();
+    }
+
+    private static void line(StringBuilder out, String name, int typeId, long value) {
+        out.append(name).append("{type_id=\"").append(typeId).append("\"} ").append(value).append('\n');
+    }
+
+    private TypeMetrics register(int typeId) {
+        TypeMetrics metrics = new TypeMetrics(typeId);
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(metrics,
+                    new ObjectName("gameServerJMS:type=Matchmaking,gameType=" + typeId));
+        } catch (Exception e) {
+            System.err.println("Failed to register matchmaking MXBean for type_id=" + typeId + ": " + e.getMessage());
+        }
+        return metrics;
+    }
+
+    /**
+     * JMX view of one game type
+     */
+    public interface TypeMetricsMXBean {
+        int getQueueDepth();
+        long getJoins();
+        long getCancels();
+        long getMatches();
+        long getExpired();
+        long getWaitP50Millis();
+        long getWaitP99Millis();
+        long getWaitMaxMillis();
+    }
+
+    public class TypeMetrics implements TypeMetricsMXBean {
+        private final int typeId;
+        private final LongAdder joins = new LongAdder();
+        private final LongAdder cancels = new LongAdder();
+        private final LongAdder matches = new LongAdder();
+        private final LongAdder expired = new LongAdder();
+        private final WaitTimeHistogram waitTimes = new WaitTimeHistogram();
+        private volatile int queueDepth;
+
+        TypeMetrics(int typeId) {
+            this.typeId = typeId;
+        }
+
+        /**
+         * Publishes the number of waiting players, called from the type's matchmaking partition
+         */
+        public void setQueueDepth(int depth) {
+            queueDepth = depth;
+        }
+
+        public void joined() {
+            joins.increment();
+        }
+
+        public void canceled() {
+            cancels.increment();
+        }
+
+        public void expired() {
+            expired.increment();
+        }
+
+        /**
+         * Counts one match and records how long each of its players waited
+         */
+        public void matched(long firstWaitMillis, long secondWaitMillis) {
+            matches.increment();
+            waitTimes.record(firstWaitMillis);
+            waitTimes.record(secondWaitMillis);
+        }
+
+        @Override
+        public int getQueueDepth() {
+            return queueDepth;
+        }
+
+        @Override
+        public long getJoins() {
+            return joins.sum();
+        }
+
+        @Override
+        public long getCancels() {
+            return cancels.sum();
+        }
+
+        @Override
+        public long getMatches() {
+            return matches.sum();
+        }
+
+        @Override
+        public long getExpired() {
+            return expired.sum();
+        }
+
+        @Override
+        public long getWaitP50Millis() {
+            return waitTimes.valueAtQuantile(0.5);
+        }
+
+        @Override
+        public long getWaitP99Millis() {
+            return waitTimes.valueAtQuantile(0.99);
+        }
+
+        @Override
+        public long getWaitMaxMillis() {
+            return waitTimes.getMax();
+        }
+    }
+}
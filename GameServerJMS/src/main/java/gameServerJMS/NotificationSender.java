@@ -0,0 +1,75 @@
+package gameServerJMS;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.jms.DeliveryMode;
+import javax.jms.Destination;
+import javax.jms.JMSException;
+import javax.jms.Message;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+
+/**
+ * Sends server notifications through one anonymous producer per session.
+ * Destinations are cached in a small LRU map so repeated sends to the same
+ * player queue or game topic do not recreate JMS objects.
+ * Not thread safe, each worker thread owns its own sender.
+ */
+public class NotificationSender {
+    private static final int MAX_CACHED_DESTINATIONS = 1024;
+
+    private final Session session;
+    private final MessageProducer producer;
+    private final Map<String, Destination> destinations;
+
+    public NotificationSender(Session session) throws JMSException {
+        this.session = session;
+        this.producer = session.createProducer(null);
+        // Evict the least recently used destination once the cache is full
+        this.destinations = new LinkedHashMap<>(256, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Destination> eldest) {
+                return size() > MAX_CACHED_DESTINATIONS;
+            }
+        };
+    }
+
+    /**
+     * Sends text to the private queue of a player
+     */
+    public void sendToPlayer(String playerId, String text) throws JMSException {
+        String queueName = "player-" + playerId;
+        Destination destination = destinations.get("queue://" + queueName);
+        if (destination == null) {
+            destination = session.createQueue(queueName);
+            destinations.put("queue://" + queueName, destination);
+        }
+        producer.send(destination, session.createTextMessage(text));
+    }
+
+    /**
+     * Sends text to a game session topic. Topic messages only matter to the clients
+     * subscribed right now, so they are sent without being stored by the broker.
+     */
+    public void sendToTopic(String topicName, String text) throws JMSException {
+        Destination destination = destinations.get("topic://" + topicName);
+        if (destination == null) {
+            destination = session.createTopic(topicName);
+            destinations.put("topic://" + topicName, destination);
+        }
+        producer.send(destination, session.createTextMessage(text),
+                DeliveryMode.NON_PERSISTENT, Message.DEFAULT_PRIORITY, Message.DEFAULT_TIME_TO_LIVE);
+    }
+
+    /**
+     * Drops a cached game topic once the game is over
+     */
+    public void evictTopic(String topicName) {
+        destinations.remove("topic://" + topicName);
+    }
+
+    public Session getSession() {
+        return session;
+    }
+}
@@ -0,0 +1,84 @@
+package gameServerJMS;
+
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Worker pool that always runs tasks with the same key on the same thread,
+ * so work for one key stays ordered while different keys run in parallel.
+ * Each partition is served by a virtual thread, so blocking JDBC calls park the
+ * worker cheaply and partitions can be plentiful.
+ *
+ * Only work entering from outside is bounded: executeBlocking() lets at most
+ * queueCapacity such tasks wait per partition and makes the JMS listener submitting
+ * more wait for room. Hand-offs between partitions and from timers go through
+ * execute(), which never blocks, so partitions submitting to each other or to
+ * themselves cannot deadlock and one full partition does not stall the rest.
+ */
+public class PartitionedExecutor {
+    private final ThreadPoolExecutor[] partitions;
+    // Room for tasks admitted through executeBlocking(), per partition
+    private final Semaphore[] admissions;
+
+    public PartitionedExecutor(String name, int partitionCount, int queueCapacity) {
+        partitions = new ThreadPoolExecutor[partitionCount];
+        admissions = new Semaphore[partitionCount];
+        for (int i = 0; i < partitionCount; i++) {
+            partitions[i] = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<>(),
+                    Thread.ofVirtual().name(name + "-" + i).factory());
+            admissions[i] = new Semaphore(queueCapacity);
+        }
+    }
+
+    /**
+     * Queues task on the partition owning the given key without waiting, for work
+     * handed on by partitions, timers and other internal threads
+     */
+    public void execute(int key, Runnable task) {
+        partitions[Math.floorMod(key, partitions.length)].execute(task);
+    }
+
+    /**
+     * Queues task on the partition owning the given key, waiting while that partition
+     * already holds queueCapacity tasks submitted this way. Only meant for JMS listeners,
+     * so a burst of messages is held back at the broker instead of piling up in memory.
+     */
+    public void executeBlocking(int key, Runnable task) {
+        int index = Math.floorMod(key, partitions.length);
+        Semaphore admission = admissions[index];
+        try {
+            admission.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RejectedExecutionException("Interrupted while waiting for room", e);
+        }
+        try {
+            partitions[index].execute(() -> {
+                try {
+                    task.run();
+                } finally {
+                    admission.release();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            admission.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Stops accepting tasks and waits for queued ones to finish
+     */
+    public void shutdown(long timeout, TimeUnit unit) throws InterruptedException {
+        for (ThreadPoolExecutor partition : partitions) {
+            partition.shutdown();
+        }
+        for (ThreadPoolExecutor partition : partitions) {
+            partition.awaitTermination(timeout, unit);
+        }
+    }
+}
@@ -0,0 +1,205 @@
+package gameServerJMS;
+
+import java.lang.management.ManagementFactory;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+import javax.management.ObjectName;
+
+/**
+ * Read-through cache of player usernames and ratings, so matchmaking and game creation
+ * only go to the database for players they have not seen recently.
+ *
+ * Entries are kept in access order and the least recently used one is dropped once the
+ * cache is full, entries older than the time to live are loaded again. Rating changes
+ * committed by this server are written through, other changes arrive as invalidations.
+ * Hits, misses and evictions are exposed as the gameServerJMS:type=PlayerProfileCache
+ * MXBean.
+ */
+public class PlayerProfileCache implements PlayerProfileCacheMXBean {
+    private final int maxSize;
+    private final long ttlMillis;
+    private final LinkedHashMap<Integer, Profile> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder invalidations = new LongAdder();
+
+    public PlayerProfileCache(int maxSize, long ttlMillis) {
+        this.maxSize = maxSize;
+        this.ttlMillis = ttlMillis;
+        try {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+                    new ObjectName("gameServerJMS:type=PlayerProfileCache"));
+        } catch (Exception e) {
+            System.err.println("Failed to register player profile cache MXBean: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Cached profile of a player, or null without touching the database
+     */
+    public Profile getIfPresent(int playerId) {
+        Profile profile = lookup(playerId);
+        if (profile != null) {
+            hits.increment();
+        }
+        return profile;
+    }
+
+    /**
+     * Profile of a player, loaded on a miss. Null if the player does not exist.
+     */
+    public Profile get(int playerId) throws SQLException {
+        Profile profile = getIfPresent(playerId);
+        if (profile != null) return profile;
+        try (Connection dbConn = DatabaseManager.getConnection()) {
+            return getAll(dbConn, List.of(playerId)).get(playerId);
+        }
+    }
+
+    /**
+     * Profiles of the given players, the missing ones are loaded with one IN query on
+     * dbConn. Players that do not exist are left out of the result.
+     */
+    public Map<Integer, Profile> getAll(Connection dbConn, List<Integer> playerIds) throws SQLException {
+        Map<Integer, Profile> found = new HashMap<>();
+        List<Integer> missing = new ArrayList<>();
+        for (Integer playerId : playerIds) {
+            Profile profile = lookup(playerId);
+            if (profile != null) {
+                hits.increment();
+                found.put(playerId, profile);
+            } else {
+                misses.increment();
+                missing.add(playerId);
+            }
+        }
+        if (missing.isEmpty()) return found;
+
+        try (PreparedStatement stmt = Query.PLAYER_PROFILES.prepare(dbConn, missing.size())) {
+            for (int i = 0; i < missing.size(); i++) {
+                stmt.setInt(i + 1, missing.get(i));
+            }
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()) {
+                int playerId = rs.getInt("player_id");
+                Profile profile = put(playerId, rs.getString("username"), rs.getInt("current_rating"));
+                found.put(playerId, profile);
+            }
+        }
+        return found;
+    }
+
+    /**
+     * Stores a profile read or written by the caller, e.g. right after a rating update commits
+     */
+    public Profile put(int playerId, String username, int rating) {
+        Profile profile = new Profile(username, rating, System.currentTimeMillis());
+        synchronized (entries) {
+            entries.put(playerId, profile);
+            if (entries.size() > maxSize) {
+                Integer eldest = entries.keySet().iterator().next();
+                entries.remove(eldest);
+                evictions.increment();
+            }
+        }
+        return profile;
+    }
+
+    /**
+     * Replaces the rating of a cached player after a rating update committed, players
+     * not in the cache are left to be loaded on their next read
+     */
+    public void updateRating(int playerId, int rating) {
+        synchronized (entries) {
+            Profile profile = entries.get(playerId);
+            if (profile != null) {
+                entries.put(playerId, new Profile(profile.username, rating, System.currentTimeMillis()));
+            }
+        }
+    }
+
+    /**
+     * Drops a player whose row was changed elsewhere, the next read loads it again
+     */
+    public void invalidate(int playerId) {
+        synchronized (entries) {
+            if (entries.remove(playerId) != null) {
+                invalidations.increment();
+            }
+        }
+    }
+
+    private Profile lookup(int playerId) {
+        synchronized (entries) {
+            Profile profile = entries.get(playerId);
+            if (profile == null) return null;
+            if (System.currentTimeMillis() - profile.loadedAt >= ttlMillis) {
+                entries.remove(playerId);
+                evictions.increment();
+                return null;
+            }
+            return profile;
+        }
+    }
+
+    @Override
+    public int getSize() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    @Override
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    @Override
+    public long getHits() {
+        return hits.sum();
+    }
+
+    @Override
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    @Override
+    public double getHitRatio() {
+        long hitCount = hits.sum();
+        long total = hitCount + misses.sum();
+        return total == 0 ? 0 : (double) hitCount / total;
+    }
+
+    @Override
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    @Override
+    public long getInvalidations() {
+        return invalidations.sum();
+    }
+
+    public static class Profile {
+        public final String username;
+        public final int rating;
+        final long loadedAt;
+
+        Profile(String username, int rating, long loadedAt) {
+            this.username = username;
+            this.rating = rating;
+            this.loadedAt = loadedAt;
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package gameServerJMS;
+
+/**
+ * JMX view of the player profile cache, see PlayerProfileCache
+ */
+public interface PlayerProfileCacheMXBean {
+    int getSize();
+    int getMaxSize();
+    long getHits();
+    long getMisses();
+    double getHitRatio();
+    long getEvictions();
+    long getInvalidations();
+}
@@ -0,0 +1,195 @@
+package gameServerJMS;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.concurrent.TimeUnit;
+
+import javax.management.ObjectName;
+
+/**
+ * Every SQL statement of the application under one name. Statements are prepared
+ * through prepare(), which times each execution into a histogram per query. The server
+ * exposes them as gameServerJMS:type=Query,name=NAME, clients time their queries too
+ * but do not register them. The SQL text of a query never changes, so the
+ * connector's server side statement cache (see DatabaseManager) parses each one once
+ * per pooled connection.
+ *
+ * Statements with a variable number of rows or IN list entries mark the spot with %s,
+ * which prepare(dbConn, count) fills with count copies of the repeated part.
+ */
+public enum Query implements QueryMXBean {
+    // Accounts, run by the client
+    PLAYER_STATS("SELECT p.current_rating, s.wins, s.losses, s.draws "
+            + "FROM Players p JOIN Stats s ON p.player_id = s.player_id WHERE p.player_id = ?"),
+    PLAYER_TYPE_STATS("SELECT type_id, wins, losses, draws FROM stats_by_type WHERE player_id = ?"),
+    UPDATE_USERNAME("UPDATE Players SET username = ? WHERE player_id = ?"),
+    PASSWORD_HASH("SELECT password_hash FROM Players WHERE player_id = ?"),
+    UPDATE_PASSWORD_HASH("UPDATE Players SET password_hash = ? WHERE player_id = ?"),
+    COUNT_USERNAME("SELECT COUNT(*) FROM Players WHERE username = ?"),
+    INSERT_PLAYER("INSERT INTO Players (username, password_hash, current_rating) VALUES (?, ?, 1000)"),
+    PLAYER_ID_BY_USERNAME("SELECT player_id FROM Players WHERE username = ?"),
+    INSERT_STATS("INSERT INTO Stats (player_id, wins, losses, draws) VALUES (?, 0, 0, 0)"),
+    LOGIN("SELECT player_id, password_hash FROM Players WHERE username = ?"),
+    GAME_HISTORY("SELECT g.game_id, g.winner, g.loser, g.draw, g.end_time, g.player_a, g.player_b, "
+            + "p1.username as player1_name, p2.username as player2_name, gt.game_name as game_type "
+            + "FROM games g "
+            + "LEFT JOIN players p1 ON g.player_a = p1.player_id "
+            + "LEFT JOIN players p2 ON g.player_b = p2.player_id "
+            + "LEFT JOIN gametypes gt ON g.type_id = gt.type_id "
+            + "WHERE (g.player_a = ? OR g.player_b = ?) AND g.stat = 'finished' "
+            + "ORDER BY g.end_time DESC LIMIT 10"),
+    TOP_PLAYERS("SELECT p.username, p.current_rating, s.wins, s.losses, s.draws "
+            + "FROM Players p JOIN Stats s ON p.player_id = s.player_id "
+            + "ORDER BY p.current_rating DESC LIMIT 10"),
+
+    // Leaderboard
+    CLEAR_LEADERBOARD("TRUNCATE TABLE leaderboard"),
+    PLAYERS_BY_RATING("SELECT player_id, current_rating FROM Players ORDER BY current_rating DESC"),
+    INSERT_LEADERBOARD("INSERT INTO leaderboard (player_id, ranking, player_rating) VALUES (?, ?, ?)"),
+
+    // Matchmaking
+    PLAYER_PROFILES("SELECT player_id, username, current_rating FROM Players WHERE player_id IN (%s)", "?"),
+    INSERT_ACTIVE_GAME("INSERT INTO Games (game_id, player_a, player_b, type_id, stat) VALUES (?, ?, ?, ?, 'active')"),
+    INSERT_ACTIVE_GAMES("INSERT INTO Games (game_id, player_a, player_b, type_id, stat) VALUES %s",
+            "(?, ?, ?, ?, 'active')"),
+    ABANDON_GAME("UPDATE Games SET stat = 'abandoned', end_time = NOW() WHERE game_id = ? AND stat = 'active'"),
+    SEED_GAME_ID_SEQUENCE("INSERT IGNORE INTO game_id_sequence (name, next_val) "
+            + "SELECT ?, COALESCE(MAX(game_id), 0) + 1 FROM Games"),
+    ADVANCE_GAME_ID_SEQUENCE("UPDATE game_id_sequence SET next_val = next_val + ? WHERE name = ?"),
+    LOCK_GAME_ID_SEQUENCE("SELECT next_val FROM game_id_sequence WHERE name = ? FOR UPDATE"),
+
+    // Results
+    GAME_PLAYERS("SELECT player_a, player_b FROM Games WHERE game_id = ?"),
+    GAMES_PLAYERS("SELECT game_id, player_a, player_b, type_id FROM Games WHERE game_id IN (%s)", "?"),
+    LOCK_PLAYERS("SELECT player_id, username, current_rating FROM Players WHERE player_id IN (%s) FOR UPDATE", "?"),
+    LOCK_WIN("SELECT p.player_id, p.username, p.current_rating, g.type_id FROM Players p "
+            + "JOIN Games g ON g.game_id = ? AND g.stat = 'active' WHERE p.player_id IN (?, ?) FOR UPDATE"),
+    // Each joined row is updated once, the game row is locked by LOCK_WIN and still active
+    APPLY_WIN("UPDATE Players p LEFT JOIN Stats s ON s.player_id = p.player_id "
+            + "JOIN Games g ON g.game_id = ? "
+            + "SET p.current_rating = IF(p.player_id = ?, ?, ?), "
+            + "s.wins = s.wins + (p.player_id = ?), s.losses = s.losses + (p.player_id = ?), "
+            + "g.winner = ?, g.loser = ?, g.end_time = NOW(), g.stat = 'finished' "
+            + "WHERE p.player_id IN (?, ?) AND g.stat = 'active'"),
+    // Players come from the game row, a game that is no longer active matches no row
+    APPLY_DRAW("UPDATE Games g LEFT JOIN Stats s ON s.player_id IN (g.player_a, g.player_b) "
+            + "SET s.draws = s.draws + 1, g.draw = TRUE, g.end_time = NOW(), g.stat = 'finished' "
+            + "WHERE g.game_id = ? AND g.stat = 'active'"),
+    FINISH_WIN("UPDATE Games SET winner = ?, loser = ?, end_time = NOW(), stat = 'finished' "
+            + "WHERE game_id = ? AND stat = 'active'"),
+    FINISH_DRAW("UPDATE Games SET draw = TRUE, end_time = NOW(), stat = 'finished' "
+            + "WHERE game_id = ? AND stat = 'active'"),
+    SET_RATING("UPDATE Players SET current_rating = ? WHERE player_id = ?"),
+    ADD_STATS("UPDATE Stats SET wins = wins + ?, losses = losses + ?, draws = draws + ? WHERE player_id = ?"),
+    // One row per (player_id, type_id, wins, losses, draws), the first game of a type creates its row
+    ADD_TYPE_STATS("INSERT INTO stats_by_type (player_id, type_id, wins, losses, draws) VALUES %s "
+            + "ON DUPLICATE KEY UPDATE wins = wins + VALUES(wins), losses = losses + VALUES(losses), "
+            + "draws = draws + VALUES(draws)", "(?, ?, ?, ?, ?)"),
+    // Players and type come from the game row, only run once APPLY_DRAW finished it
+    ADD_TYPE_DRAW("INSERT INTO stats_by_type (player_id, type_id, wins, losses, draws) "
+            + "SELECT p.player_id, g.type_id, 0, 0, 1 FROM Games g "
+            + "JOIN Players p ON p.player_id IN (g.player_a, g.player_b) WHERE g.game_id = ? "
+            + "ON DUPLICATE KEY UPDATE draws = draws + 1");
+
+    private final String sql;
+    // Repeated in place of %s, null for statements of fixed shape
+    private final String repeated;
+    private final WaitTimeHistogram micros = new WaitTimeHistogram();
+
+    Query(String sql) {
+        this(sql, null);
+    }
+
+    Query(String sql, String repeated) {
+        this.sql = sql;
+        this.repeated = repeated;
+    }
+
+    /**
+     * Registers the MXBean of every query, called once at server startup
+     */
+    public static void registerMXBeans() {
+        for (Query query : values()) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(query,
+                        new ObjectName("gameServerJMS:type=Query,name=" + query.name()));
+            } catch (Exception e) {
+                System.err.println("Failed to register query MXBean " + query.name() + ": " + e.getMessage());
+            }
+        }
+    }
+
+    public PreparedStatement prepare(Connection dbConn) throws SQLException {
+        if (repeated != null) {
+            throw new IllegalStateException(name() + " needs the number of repetitions");
+        }
+        return timed(dbConn.prepareStatement(sql));
+    }
+
+    /**
+     * Prepares a statement with count copies of the repeated part, count must be at least one
+     */
+    public PreparedStatement prepare(Connection dbConn, int count) throws SQLException {
+        StringBuilder parts = new StringBuilder();
+        for (int i = 0; i < count; i++) {
+            parts.append(i == 0 ? repeated : ", " + repeated);
+        }
+        return timed(dbConn.prepareStatement(sql.replace("%s", parts)));
+    }
+
+    private PreparedStatement timed(PreparedStatement statement) {
+        InvocationHandler handler = (proxy, method, args) -> invoke(statement, method, args);
+        return (PreparedStatement) Proxy.newProxyInstance(Query.class.getClassLoader(),
+                new Class<?>[] { PreparedStatement.class }, handler);
+    }
+
+    private Object invoke(PreparedStatement statement, Method method, Object[] args) throws Throwable {
+        boolean execution = method.getName().startsWith("execute");
+        long start = execution ? System.nanoTime() : 0;
+        try {
+            return method.invoke(statement, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        } finally {
+            if (execution) {
+                micros.record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start));
+            }
+        }
+    }
+
+    @Override
+    public String getSql() {
+        return sql;
+    }
+
+    @Override
+    public long getExecutions() {
+        return micros.getCount();
+    }
+
+    @Override
+    public long getP50Micros() {
+        return micros.valueAtQuantile(0.5);
+    }
+
+    @Override
+    public long getP99Micros() {
+        return micros.valueAtQuantile(0.99);
+    }
+
+    @Override
+    public long getMaxMicros() {
+        return micros.getMax();
+    }
+
+    @Override
+    public long getTotalMillis() {
+        return micros.getSum() / 1000;
+    }
+}
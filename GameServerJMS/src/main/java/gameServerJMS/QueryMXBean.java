@@ -0,0 +1,13 @@
+package gameServerJMS;
+
+/**
+ * JMX view of the timings of one named statement, see Query
+ */
+public interface QueryMXBean {
+    String getSql();
+    long getExecutions();
+    long getP50Micros();
+    long getP99Micros();
+    long getMaxMicros();
+    long getTotalMillis();
+}
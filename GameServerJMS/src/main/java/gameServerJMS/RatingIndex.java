@@ -0,0 +1,126 @@
+package gameServerJMS;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Waiting players of one game type ordered by rating, so the closest rated opponent is
+ * found in O(log n). A waiting player accepts opponents within a rating window that
+ * starts narrow and widens the longer the player waits.
+ */
+public class RatingIndex {
+    private static final int BASE_WINDOW = Integer.getInteger("gameServerJMS.ratingWindow", 100);
+    private static final int WIDEN_PER_SECOND = Integer.getInteger("gameServerJMS.ratingWindowGrowth", 10);
+    private static final int MAX_WINDOW = Integer.getInteger("gameServerJMS.ratingWindowMax", 1000);
+
+    private static final Comparator<Entry> ORDER =
+            Comparator.<Entry>comparingInt(e -> e.rating).thenComparingLong(e -> e.sequence);
+
+    private final ConcurrentSkipListSet<Entry> byRating = new ConcurrentSkipListSet<>(ORDER);
+    private final Map<String, Entry> byPlayer = new ConcurrentHashMap<>();
+    // Breaks rating ties in arrival order
+    private final AtomicLong sequence = new AtomicLong();
+
+    public void add(String playerId, int rating, long enqueuedAt) {
+        Entry entry = new Entry(playerId, rating, enqueuedAt, sequence.incrementAndGet());
+        Entry previous = byPlayer.put(playerId, entry);
+        if (previous != null) {
+            byRating.remove(previous);
+        }
+        byRating.add(entry);
+    }
+
+    public boolean remove(String playerId) {
+        Entry entry = byPlayer.remove(playerId);
+        if (entry == null) return false;
+        byRating.remove(entry);
+        return true;
+    }
+
+    /**
+     * Rating the player joined with, or null if the player is not waiting
+     */
+    public Integer ratingOf(String playerId) {
+        Entry entry = byPlayer.get(playerId);
+        return entry == null ? null : entry.rating;
+    }
+
+    public int size() {
+        return byPlayer.size();
+    }
+
+    /**
+     * Returns the waiting player closest to the given rating whose window covers it,
+     * or null if nobody is close enough yet. The player stays in the index.
+     */
+    public String findOpponent(int rating, long now) {
+        Entry probe = new Entry(null, rating, 0, Long.MIN_VALUE);
+        Entry above = byRating.ceiling(probe);
+        Entry below = byRating.lower(probe);
+
+        Entry best = null;
+        if (above != null && above.rating - rating <= window(now - above.enqueuedAt)) {
+            best = above;
+        }
+        if (below != null && rating - below.rating <= window(now - below.enqueuedAt)
+                && (best == null || rating - below.rating < best.rating - rating)) {
+            best = below;
+        }
+        return best == null ? null : best.playerId;
+    }
+
+    /**
+     * Takes out neighbouring waiting players whose windows have grown to cover each other.
+     * Each pair lists the player who has waited longer first.
+     */
+    public List<Entry[]> takeMatchedPairs(long now) {
+        List<Entry[]> pairs = new ArrayList<>();
+        Entry previous = null;
+        Iterator<Entry> it = byRating.iterator();
+        while (it.hasNext()) {
+            Entry current = it.next();
+            if (previous != null) {
+                int window = Math.max(window(now - previous.enqueuedAt), window(now - current.enqueuedAt));
+                if (current.rating - previous.rating <= window) {
+                    remove(previous.playerId);
+                    remove(current.playerId);
+                    pairs.add(previous.enqueuedAt <= current.enqueuedAt
+                            ? new Entry[] { previous, current }
+                            : new Entry[] { current, previous });
+                    previous = null;
+                    continue;
+                }
+            }
+            previous = current;
+        }
+        return pairs;
+    }
+
+    static int window(long waitedMillis) {
+        long widened = BASE_WINDOW + WIDEN_PER_SECOND * Math.max(0, waitedMillis) / 1000;
+        return (int) Math.min(widened, MAX_WINDOW);
+    }
+
+    /**
+     * A waiting player with the rating and time it joined with
+     */
+    public static class Entry {
+        public final String playerId;
+        public final int rating;
+        public final long enqueuedAt;
+        final long sequence;
+
+        Entry(String playerId, int rating, long enqueuedAt, long sequence) {
+            this.playerId = playerId;
+            this.rating = rating;
+            this.enqueuedAt = enqueuedAt;
+            this.sequence = sequence;
+        }
+    }
+}
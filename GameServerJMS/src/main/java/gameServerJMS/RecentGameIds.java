@@ -0,0 +1,56 @@
+package gameServerJMS;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded set of recently finished game ids, used to drop repeated results before they
+ * reach the database. Entries are kept in the order the games finished and leave once
+ * they are older than the time to live or the set is full, oldest first.
+ *
+ * An evicted game is still guarded by the stat = 'active' condition on its Games row,
+ * so the set only has to cover the window in which duplicates normally arrive.
+ */
+public class RecentGameIds {
+    private final int capacity;
+    private final long ttlMillis;
+    private final LinkedHashMap<Integer, Long> finishedAt = new LinkedHashMap<>();
+
+    public RecentGameIds(int capacity, long ttlMillis) {
+        this.capacity = capacity;
+        this.ttlMillis = ttlMillis;
+    }
+
+    /**
+     * Records a finished game, returns false if it was already recorded
+     */
+    public synchronized boolean add(int gameId) {
+        long now = System.currentTimeMillis();
+        evict(now);
+        if (finishedAt.containsKey(gameId)) return false;
+        finishedAt.put(gameId, now);
+        if (finishedAt.size() > capacity) {
+            Iterator<Integer> eldest = finishedAt.keySet().iterator();
+            eldest.next();
+            eldest.remove();
+        }
+        return true;
+    }
+
+    public synchronized boolean contains(int gameId) {
+        Long at = finishedAt.get(gameId);
+        return at != null && System.currentTimeMillis() - at < ttlMillis;
+    }
+
+    public synchronized int size() {
+        return finishedAt.size();
+    }
+
+    private void evict(long now) {
+        Iterator<Map.Entry<Integer, Long>> it = finishedAt.entrySet().iterator();
+        while (it.hasNext() && now - it.next().getValue() >= ttlMillis) {
+            it.remove();
+        }
+    }
+}
@@ -0,0 +1,337 @@
+package gameServerJMS;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Write-behind log of finished games. Results are appended to a memory mapped ring and
+ * count as accepted once they are forced to disk, the database catches up later in
+ * batches and moves the applied mark forward, which frees the space behind it.
+ *
+ * Offsets are logical and only ever grow, the position in the file is the offset modulo
+ * the ring capacity. Every record carries its own offset and a checksum of its payload,
+ * so a record left over from the previous lap or a torn write reads as the end of the log.
+ * A record never wraps around the end of the ring, the rest of the lap is skipped instead.
+ *
+ * One thread forces the written range to disk over and over, everything appended while a
+ * force is running goes out with the next one, so a burst of results shares a few fsyncs.
+ */
+public class ResultJournal {
+    private static final int MAGIC = 0x52534A31;
+    // magic, applied offset
+    private static final int HEADER_SIZE = 64;
+    // offset, payload length, payload checksum
+    private static final int RECORD_HEADER = 8 + 4 + 4;
+    private static final int SKIP = -1;
+
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int capacity;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition dirty = lock.newCondition();
+    private final Condition durable = lock.newCondition();
+    private final Condition spaceFreed = lock.newCondition();
+    // End of the appended records, of the records forced to disk and of those applied to the database
+    private long written;
+    private long forced;
+    private long applied;
+    // Where the next readDurable() continues, only touched by the thread applying results
+    private long readPosition;
+    // Callers of whenDurable() in the order of the written offset they wait for
+    private final ArrayDeque<Waiter> waiters = new ArrayDeque<>();
+    private boolean closed;
+    private final Thread syncThread;
+
+    public ResultJournal(String fileName, int capacity) throws IOException {
+        Path path = Paths.get(fileName);
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) HEADER_SIZE + capacity);
+        this.capacity = capacity;
+
+        if (buffer.getInt(0) == MAGIC) {
+            applied = buffer.getLong(8);
+        } else {
+            buffer.putLong(8, 0);
+            buffer.putInt(0, MAGIC);
+            buffer.force();
+        }
+        readPosition = applied;
+        written = applied;
+        int pending = 0;
+        while (true) {
+            if (readRecord(written) != null) {
+                written = next(written);
+                pending++;
+            } else if (skipLap(written) != written) {
+                written = skipLap(written);
+            } else {
+                break;
+            }
+        }
+        forced = written;
+        if (pending > 0) {
+            System.out.println("Replaying " + pending + " game results from " + fileName
+                    + " that were not applied to the database yet");
+        }
+
+        syncThread = new Thread(this::syncLoop, "result-journal-sync");
+        syncThread.setDaemon(true);
+        syncThread.start();
+    }
+
+    /**
+     * Appends a record, waiting for the database to catch up while the ring is full.
+     * The record is durable once the future of a later whenDurable() call completes.
+     */
+    public void append(String record) throws InterruptedException {
+        byte[] payload = record.getBytes(StandardCharsets.UTF_8);
+        int length = RECORD_HEADER + payload.length;
+        if (length > capacity) {
+            throw new IllegalArgumentException("Result record of " + payload.length + " bytes does not fit the journal");
+        }
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+
+        lock.lock();
+        try {
+            long offset = written;
+            if (spaceInLap(offset) < length) {
+                offset = offset + spaceInLap(offset);
+            }
+            while (offset + length - applied > capacity) {
+                spaceFreed.await();
+                offset = written;
+                if (spaceInLap(offset) < length) {
+                    offset = offset + spaceInLap(offset);
+                }
+            }
+            if (offset != written) {
+                markSkip(written);
+            }
+            int at = HEADER_SIZE + (int) (offset % capacity);
+            buffer.put(at + RECORD_HEADER, payload);
+            buffer.putInt(at + 8, payload.length);
+            buffer.putInt(at + 12, (int) crc.getValue());
+            buffer.putLong(at, offset);
+            written = offset + length;
+            dirty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Completes once everything appended before the call is on disk
+     */
+    public CompletableFuture<Void> whenDurable() {
+        lock.lock();
+        try {
+            if (forced >= written) return CompletableFuture.completedFuture(null);
+            Waiter last = waiters.peekLast();
+            if (last == null || last.offset != written) {
+                last = new Waiter(written);
+                waiters.addLast(last);
+            }
+            return last.future;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Moves up to max durable records that were not read yet into records, waiting up to
+     * timeoutMillis for one to arrive. Returns the offset to hand to markApplied() once
+     * they are in the database.
+     */
+    public long readDurable(int max, List<String> records, long timeoutMillis) throws InterruptedException {
+        long end;
+        lock.lock();
+        try {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            while (forced <= readPosition && !closed) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) return readPosition;
+                durable.awaitNanos(remaining);
+            }
+            end = forced;
+        } finally {
+            lock.unlock();
+        }
+        // Records below the forced mark are never written again until they are applied
+        while (readPosition < end && records.size() < max) {
+            String record = readRecord(readPosition);
+            if (record == null) {
+                long skipped = skipLap(readPosition);
+                if (skipped == readPosition) {
+                    throw new IllegalStateException("Result journal is unreadable at offset " + readPosition);
+                }
+                readPosition = skipped;
+                continue;
+            }
+            records.add(record);
+            readPosition = next(readPosition);
+        }
+        return readPosition;
+    }
+
+    /**
+     * Records everything before offset as applied, so it is not replayed and its space is reused
+     */
+    public void markApplied(long offset) {
+        lock.lock();
+        try {
+            if (offset <= applied) return;
+            buffer.putLong(8, offset);
+            buffer.force(0, HEADER_SIZE);
+            applied = offset;
+            spaceFreed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Results that are durable but not yet in the database
+     */
+    public long backlogBytes() {
+        lock.lock();
+        try {
+            return written - applied;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void close() throws IOException, InterruptedException {
+        lock.lock();
+        try {
+            closed = true;
+            dirty.signal();
+            durable.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        syncThread.join();
+        channel.close();
+    }
+
+    private void syncLoop() {
+        while (true) {
+            long from;
+            long to;
+            List<Waiter> done = new ArrayList<>();
+            lock.lock();
+            try {
+                while (forced >= written && !closed) {
+                    dirty.awaitUninterruptibly();
+                }
+                if (forced >= written) return;
+                from = forced;
+                to = written;
+            } finally {
+                lock.unlock();
+            }
+
+            force(from, to);
+
+            lock.lock();
+            try {
+                forced = to;
+                durable.signalAll();
+                // Waiters that arrived during the force may already be covered by it
+                while (!waiters.isEmpty() && waiters.peekFirst().offset <= forced) {
+                    done.add(waiters.pollFirst());
+                }
+            } finally {
+                lock.unlock();
+            }
+            for (Waiter waiter : done) {
+                waiter.future.complete(null);
+            }
+        }
+    }
+
+    /**
+     * Forces the pages holding the logical range, split in two when it wraps around
+     */
+    private void force(long from, long to) {
+        int start = (int) (from % capacity);
+        if (to - from >= capacity) {
+            buffer.force(HEADER_SIZE, capacity);
+        } else if (start + (to - from) <= capacity) {
+            buffer.force(HEADER_SIZE + start, (int) (to - from));
+        } else {
+            buffer.force(HEADER_SIZE + start, capacity - start);
+            buffer.force(HEADER_SIZE, (int) (to - from) - (capacity - start));
+        }
+    }
+
+    /**
+     * Payload of the record at offset, or null if there is no intact record there
+     */
+    private String readRecord(long offset) {
+        if (spaceInLap(offset) < RECORD_HEADER) return null;
+        int at = HEADER_SIZE + (int) (offset % capacity);
+        if (buffer.getLong(at) != offset) return null;
+        int length = buffer.getInt(at + 8);
+        if (length <= 0 || RECORD_HEADER + length > spaceInLap(offset)) return null;
+        byte[] payload = new byte[length];
+        buffer.get(at + RECORD_HEADER, payload);
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        if ((int) crc.getValue() != buffer.getInt(at + 12)) return null;
+        return new String(payload, StandardCharsets.UTF_8);
+    }
+
+    private long next(long offset) {
+        return offset + RECORD_HEADER + buffer.getInt(HEADER_SIZE + (int) (offset % capacity) + 8);
+    }
+
+    /**
+     * Offset the record after offset starts at, the start of the next lap if a skip marker is there
+     */
+    private long skipLap(long offset) {
+        if (spaceInLap(offset) >= RECORD_HEADER) {
+            int at = HEADER_SIZE + (int) (offset % capacity);
+            if (buffer.getLong(at) != offset || buffer.getInt(at + 8) != SKIP) return offset;
+        }
+        return offset + spaceInLap(offset);
+    }
+
+    private void markSkip(long offset) {
+        if (spaceInLap(offset) < RECORD_HEADER) return;
+        int at = HEADER_SIZE + (int) (offset % capacity);
+        buffer.putInt(at + 8, SKIP);
+        buffer.putLong(at, offset);
+    }
+
+    private int spaceInLap(long offset) {
+        return capacity - (int) (offset % capacity);
+    }
+
+    /**
+     * Completed once everything before offset is on disk
+     */
+    private static class Waiter {
+        final long offset;
+        final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        Waiter(long offset) {
+            this.offset = offset;
+        }
+    }
+}
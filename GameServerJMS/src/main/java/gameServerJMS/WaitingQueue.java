@@ -0,0 +1,228 @@
+package gameServerJMS;
+
+import java.util.Arrays;
+
+/**
+ * FIFO of waiting player ids with O(1) add, poll, contains and remove.
+ *
+ * Entries live in parallel arrays linked into a doubly linked list in arrival order,
+ * and an open addressing table maps each player id to its slot, so nothing is boxed
+ * and a cancel does not scan the queue. Every entry keeps the time it was added and
+ * the reaper timeout armed for it, which is cancelled when the entry leaves the queue.
+ *
+ * Not thread safe, a queue is only touched from its type's matchmaking partition.
+ */
+public class WaitingQueue {
+    public static final int NONE = -1;
+
+    private int[] playerIds;
+    private long[] enqueuedAts;
+    private HashedWheelTimer.Timeout[] expiries;
+    private int[] prev;
+    private int[] next;
+    private int head = NONE;
+    private int tail = NONE;
+    private int size;
+    // Released slots are chained through next, slots from nextUnused on were never used
+    private int freeSlot = NONE;
+    private int nextUnused;
+
+    // slot + 1 per bucket, 0 marks an empty bucket
+    private int[] table;
+    private int mask;
+
+    public WaitingQueue() {
+        this(16);
+    }
+
+    public WaitingQueue(int initialCapacity) {
+        int capacity = Integer.highestOneBit(Math.max(initialCapacity, 4) - 1) << 1;
+        playerIds = new int[capacity];
+        enqueuedAts = new long[capacity];
+        expiries = new HashedWheelTimer.Timeout[capacity];
+        prev = new int[capacity];
+        next = new int[capacity];
+        table = new int[capacity * 2];
+        mask = table.length - 1;
+    }
+
+    /**
+     * Appends the player, returns false if the player is already waiting
+     */
+    public boolean add(int playerId, long enqueuedAt) {
+        if (slotOf(playerId) != NONE) return false;
+
+        int slot = allocateSlot();
+        playerIds[slot] = playerId;
+        enqueuedAts[slot] = enqueuedAt;
+        prev[slot] = tail;
+        next[slot] = NONE;
+        if (tail == NONE) {
+            head = slot;
+        } else {
+            next[tail] = slot;
+        }
+        tail = slot;
+        insertIntoTable(slot);
+        size++;
+        return true;
+    }
+
+    public boolean contains(int playerId) {
+        return slotOf(playerId) != NONE;
+    }
+
+    public boolean remove(int playerId) {
+        int slot = slotOf(playerId);
+        if (slot == NONE) return false;
+        removeSlot(slot);
+        return true;
+    }
+
+    /**
+     * Takes the player who has waited longest, or NONE if the queue is empty
+     */
+    public int poll() {
+        if (head == NONE) return NONE;
+        int playerId = playerIds[head];
+        removeSlot(head);
+        return playerId;
+    }
+
+    public int peek() {
+        return head == NONE ? NONE : playerIds[head];
+    }
+
+    /**
+     * Attaches the expiry armed for a waiting player, it is cancelled once the player
+     * is removed or polled. Cancels the timeout right away if the player is not waiting.
+     */
+    public void setExpiry(int playerId, HashedWheelTimer.Timeout timeout) {
+        int slot = slotOf(playerId);
+        if (slot == NONE) {
+            timeout.cancel();
+            return;
+        }
+        if (expiries[slot] != null) {
+            expiries[slot].cancel();
+        }
+        expiries[slot] = timeout;
+    }
+
+    /**
+     * Time the player was added, or -1 if the player is not waiting
+     */
+    public long enqueuedAt(int playerId) {
+        int slot = slotOf(playerId);
+        return slot == NONE ? -1 : enqueuedAts[slot];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    private int slotOf(int playerId) {
+        int i = bucketOf(playerId);
+        while (table[i] != 0) {
+            int slot = table[i] - 1;
+            if (playerIds[slot] == playerId) return slot;
+            i = (i + 1) & mask;
+        }
+        return NONE;
+    }
+
+    private void removeSlot(int slot) {
+        removeFromTable(slot);
+        if (expiries[slot] != null) {
+            expiries[slot].cancel();
+            expiries[slot] = null;
+        }
+
+        int before = prev[slot];
+        int after = next[slot];
+        if (before == NONE) {
+            head = after;
+        } else {
+            next[before] = after;
+        }
+        if (after == NONE) {
+            tail = before;
+        } else {
+            prev[after] = before;
+        }
+
+        next[slot] = freeSlot;
+        freeSlot = slot;
+        size--;
+    }
+
+    private int allocateSlot() {
+        if (freeSlot != NONE) {
+            int slot = freeSlot;
+            freeSlot = next[slot];
+            return slot;
+        }
+        if (nextUnused == playerIds.length) {
+            grow();
+        }
+        return nextUnused++;
+    }
+
+    private void grow() {
+        int capacity = playerIds.length * 2;
+        playerIds = Arrays.copyOf(playerIds, capacity);
+        enqueuedAts = Arrays.copyOf(enqueuedAts, capacity);
+        expiries = Arrays.copyOf(expiries, capacity);
+        prev = Arrays.copyOf(prev, capacity);
+        next = Arrays.copyOf(next, capacity);
+
+        table = new int[capacity * 2];
+        mask = table.length - 1;
+        for (int slot = head; slot != NONE; slot = next[slot]) {
+            insertIntoTable(slot);
+        }
+    }
+
+    private void insertIntoTable(int slot) {
+        int i = bucketOf(playerIds[slot]);
+        while (table[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        table[i] = slot + 1;
+    }
+
+    /**
+     * Linear probing delete, later entries of the probe run are shifted back so
+     * lookups never need tombstones
+     */
+    private void removeFromTable(int slot) {
+        int i = bucketOf(playerIds[slot]);
+        while (table[i] != slot + 1) {
+            i = (i + 1) & mask;
+        }
+        table[i] = 0;
+
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (table[j] == 0) return;
+            int home = bucketOf(playerIds[table[j] - 1]);
+            // Move the entry unless its home bucket lies cyclically in (i, j]
+            boolean stays = i <= j ? (i < home && home <= j) : (i < home || home <= j);
+            if (!stays) {
+                table[i] = table[j];
+                table[j] = 0;
+                i = j;
+            }
+        }
+    }
+
+    private int bucketOf(int playerId) {
+        int h = playerId * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & mask;
+    }
+}
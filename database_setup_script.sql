@@ -31,6 +31,19 @@ CREATE TABLE IF NOT EXISTS `stats` (
     CONSTRAINT `stats_ibfk_1` FOREIGN KEY (`player_id`) REFERENCES `players` (`player_id`)
 ) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci;
 
+-- Stats by type table - player statistics per game type, kept in step with stats
+CREATE TABLE IF NOT EXISTS `stats_by_type` (
+    `player_id` int NOT NULL,
+    `type_id` int NOT NULL,
+    `wins` int DEFAULT '0',
+    `losses` int DEFAULT '0',
+    `draws` int DEFAULT '0',
+    PRIMARY KEY (`player_id`, `type_id`),
+    KEY `type_id` (`type_id`),
+    CONSTRAINT `stats_by_type_ibfk_1` FOREIGN KEY (`player_id`) REFERENCES `players` (`player_id`),
+    CONSTRAINT `stats_by_type_ibfk_2` FOREIGN KEY (`type_id`) REFERENCES `gametypes` (`type_id`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci;
+
 -- Games table - stores game session records
 CREATE TABLE IF NOT EXISTS `games` (
     `game_id` int NOT NULL AUTO_INCREMENT,
@@ -56,6 +69,13 @@ CREATE TABLE IF NOT EXISTS `games` (
     CONSTRAINT `games_ibfk_5` FOREIGN KEY (`loser`) REFERENCES `players` (`player_id`)
 ) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci;
 
+-- Game id sequence - the server reserves blocks of game ids from here
+CREATE TABLE IF NOT EXISTS `game_id_sequence` (
+    `name` varchar(50) COLLATE utf8mb4_unicode_ci NOT NULL,
+    `next_val` bigint NOT NULL,
+    PRIMARY KEY (`name`)
+) ENGINE=InnoDB DEFAULT CHARSET=utf8mb4 COLLATE=utf8mb4_unicode_ci;
+
 
 
 -- Insert game types
@@ -125,6 +145,15 @@ INSERT INTO games (type_id, player_a, player_b, winner, loser, draw, stat, start
 (2, 8, 9, 9, 8, NULL, 'finished', '2025-08-22 13:40:00', '2025-08-22 14:10:00'),
 (3, 7, 10, 7, 10, NULL, 'finished', '2025-08-23 11:20:00', '2025-08-23 11:30:00');
 
+-- Per type stats of the sample games, from then on the server keeps them up to date
+INSERT INTO stats_by_type (player_id, type_id, wins, losses, draws)
+SELECT p.player_id, g.type_id,
+       SUM(g.winner <=> p.player_id), SUM(g.loser <=> p.player_id), SUM(g.draw IS NOT NULL)
+FROM games g
+JOIN players p ON p.player_id IN (g.player_a, g.player_b)
+WHERE g.stat = 'finished'
+GROUP BY p.player_id, g.type_id;
+
 
 -- =====================================================
 -- VERIFICATION QUERIES (Optional - for testing)
@@ -140,6 +169,9 @@ SELECT * FROM gametypes;
 SELECT 'Stats Table:' as Info;
 SELECT * FROM stats;
 
+SELECT 'Stats By Type Table:' as Info;
+SELECT * FROM stats_by_type;
+
 SELECT 'Games Table (Recent 10):' as Info;
 SELECT * FROM games ORDER BY end_time DESC LIMIT 10;
 